@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util.benchmark;
+
+import groovy.lang.Closure;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.martingropp.util.CompiledListRegex;
+import de.martingropp.util.ListRegex;
+import de.martingropp.util.NativeListRegex;
+
+/**
+ * find, findAll and matches of ListRegex (static methods), CompiledListRegex
+ * and NativeListRegex, for different list sizes, closure counts and
+ * patterns.
+ *
+ * The list elements are random numbers, closure i matches if bit i is set,
+ * so n closures produce up to 2^n different combinations of closure matches
+ * (6 closures: 64, ListRegex's original limit; 8 closures: 256).
+ *
+ * Run a subset with e.g.
+ * java -jar target/benchmarks.jar ListRegexBenchmark.findAll -p engine=native -p size=100000
+ *
+ * @author mgropp
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListRegexBenchmark {
+	@Param({ "100", "10000", "1000000" })
+	public int size;
+
+	@Param({ "2", "6", "8" })
+	public int closureCount;
+
+	/** simple, alternation under a star (backtracking), counted repetition */
+	@Param({ "{0}{1}", "({0}|{1})*{1}{0}", "{0}'{'2,4}{1}?" })
+	public String pattern;
+
+	@Param({ "static", "compiled", "native" })
+	public String engine;
+
+	private List<Integer> list;
+	private List<Closure> closures;
+	private String matchesPattern;
+
+	private CompiledListRegex<Integer> compiled;
+	private CompiledListRegex<Integer> compiledMatches;
+	private NativeListRegex<Integer> nativeRegex;
+	private NativeListRegex<Integer> nativeMatches;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(random.nextInt(1 << closureCount));
+		}
+
+		closures = new ArrayList<>(closureCount);
+		for (int i = 0; i < closureCount; i++) {
+			closures.add(bit(i));
+		}
+
+		// matches has to look at the whole list; java.util.regex recurses
+		// for each repetition of a group, but not of a single element (.*)
+		matchesPattern = ".*(?:" + pattern + ").*";
+
+		compiled = ListRegex.compile(pattern, closures);
+		compiledMatches = ListRegex.compile(matchesPattern, closures);
+		nativeRegex = ListRegex.compileNative(pattern, closures);
+		nativeMatches = ListRegex.compileNative(matchesPattern, closures);
+	}
+
+	private static Closure<Boolean> bit(final int bit) {
+		return new Closure<Boolean>(null) {
+			private static final long serialVersionUID = 1L;
+
+			@SuppressWarnings("unused")
+			public Boolean doCall(Object value) {
+				return ((((Integer)value) >> bit) & 1) == 1;
+			}
+		};
+	}
+
+	@Benchmark
+	public Collection<Integer> find() {
+		switch (engine) {
+			case "static":
+				return ListRegex.find(pattern, closures, list);
+			case "compiled":
+				return compiled.find(list);
+			default:
+				return nativeRegex.find(list);
+		}
+	}
+
+	@Benchmark
+	public Collection<? extends Collection<Integer>> findAll() {
+		switch (engine) {
+			case "static":
+				return ListRegex.findAll(pattern, closures, list);
+			case "compiled":
+				return compiled.findAll(list);
+			default:
+				return nativeRegex.findAll(list);
+		}
+	}
+
+	@Benchmark
+	public boolean matches() {
+		switch (engine) {
+			case "static":
+				return ListRegex.matches(matchesPattern, closures, list);
+			case "compiled":
+				return compiledMatches.matches(list);
+			default:
+				return nativeMatches.matches(list);
+		}
+	}
+}
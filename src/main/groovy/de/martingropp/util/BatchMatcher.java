@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs one pattern on many (typically short) lists in parallel.
+ *
+ * The lists are split into ranges, which are processed by the threads
+ * of a pool. Each thread has one VM and one predicate result buffer
+ * that are reused for all lists it processes, so little is allocated
+ * per list.
+ *
+ * @author mgropp
+ */
+final class BatchMatcher {
+	static final int FIND = 0;
+	static final int FIND_ALL = 1;
+	static final int MATCHES = 2;
+
+	/** don't split ranges with fewer lists than this */
+	private static final int MIN_SIZE = 64;
+
+	private BatchMatcher() {
+	}
+
+	/**
+	 * @param mode
+	 *   FIND, FIND_ALL or MATCHES
+	 * @return
+	 *   for each list (in order): start and end of the matches
+	 *   (see ListVM.searchAll), or null if there is no match
+	 *   (FIND and MATCHES: at most one match)
+	 */
+	static int[][] run(
+		ListPattern pattern,
+		NativeListRegex.ElementPredicate<Object>[] predicates,
+		int[] used,
+		List<? extends List<?>> lists,
+		int mode,
+		ForkJoinPool pool
+	) {
+		int[][] result = new int[lists.size()][];
+		if (lists.isEmpty()) {
+			return result;
+		}
+
+		Workers workers = new Workers(pattern, predicates, used, mode);
+		pool.invoke(new Task(workers, lists, mode, result, 0, lists.size()));
+		return result;
+	}
+
+	/**
+	 * The VM and buffer of each thread taking part in one run.
+	 */
+	private static class Workers extends ThreadLocal<Worker> {
+		private final ListPattern pattern;
+		private final NativeListRegex.ElementPredicate<Object>[] predicates;
+		private final int[] used;
+		private final int mode;
+
+		Workers(ListPattern pattern, NativeListRegex.ElementPredicate<Object>[] predicates, int[] used, int mode) {
+			this.pattern = pattern;
+			this.predicates = predicates;
+			this.used = used;
+			this.mode = mode;
+		}
+
+		@Override
+		protected Worker initialValue() {
+			ListVM vm = new ListVM(pattern, false);
+			vm.requireEnd = (mode == MATCHES);
+			return new Worker(vm, new Buffer(predicates, used));
+		}
+	}
+
+	private static class Worker {
+		final ListVM vm;
+		final Buffer buffer;
+
+		Worker(ListVM vm, Buffer buffer) {
+			this.vm = vm;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Predicate results of one list at a time, growing as needed.
+	 */
+	private static class Buffer implements ListVM.Input {
+		private final NativeListRegex.ElementPredicate<Object>[] predicates;
+		private final int[] used;
+		private final int words;
+		private long[] bits = new long[0];
+
+		Buffer(NativeListRegex.ElementPredicate<Object>[] predicates, int[] used) {
+			this.predicates = predicates;
+			this.used = used;
+			this.words = Math.max(1, (predicates.length + 63) >>> 6);
+		}
+
+		void evaluate(List<?> list) {
+			int size = list.size() * words;
+			if (bits.length < size) {
+				bits = new long[Math.max(size, 2 * bits.length)];
+			} else {
+				Arrays.fill(bits, 0, size, 0L);
+			}
+
+			int offset = 0;
+			for (Object element : list) {
+				for (int p : used) {
+					if (predicates[p].test(element)) {
+						bits[offset + (p >>> 6)] |= 1L << p;
+					}
+				}
+				offset += words;
+			}
+		}
+
+		@Override
+		public boolean test(int index, int predicate) {
+			return (bits[index*words + (predicate >>> 6)] & (1L << predicate)) != 0;
+		}
+	}
+
+	private static class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Workers workers;
+		private final List<? extends List<?>> lists;
+		private final int mode;
+		private final int[][] result;
+		private final int start;
+		private final int end;
+
+		Task(
+			Workers workers,
+			List<? extends List<?>> lists,
+			int mode,
+			int[][] result,
+			int start,
+			int end
+		) {
+			this.workers = workers;
+			this.lists = lists;
+			this.mode = mode;
+			this.result = result;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > MIN_SIZE) {
+				int middle = (start + end) >>> 1;
+				invokeAll(
+					new Task(workers, lists, mode, result, start, middle),
+					new Task(workers, lists, mode, result, middle, end)
+				);
+				return;
+			}
+
+			Worker worker = workers.get();
+			ListVM vm = worker.vm;
+			Buffer buffer = worker.buffer;
+
+			for (int i = start; i < end; i++) {
+				List<?> list = lists.get(i);
+				buffer.evaluate(list);
+				vm.length = list.size();
+
+				if (mode == FIND_ALL) {
+					int[] caps = vm.searchAll(buffer);
+					result[i] = (caps.length == 0) ? null : caps;
+				} else if (vm.search(buffer, 0, mode == MATCHES)) {
+					result[i] = new int[] { vm.matchCaps[0], vm.matchCaps[1] };
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import groovy.lang.Closure;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.codehaus.groovy.runtime.typehandling.DefaultTypeTransformation;
+
+/**
+ * A ListRegex pattern compiled for a fixed list of closures.
+ *
+ * ListRegex has to format and compile the regular expression on every
+ * call because the characters representing the list elements depend on
+ * the closure matches found in the list.
+ * A CompiledListRegex keeps that mapping between calls: each combination
+ * of closure matches keeps its character once it has been seen, and the
+ * Pattern is only compiled again when a list contains a combination that
+ * has never been seen before.
+ *
+ * Example:
+ * CompiledListRegex regex = ListRegex.compile(
+ *   "{0}{1}+",
+ *   [ { it.startsWith("A") }, { it.length() == 4 } ]
+ * )
+ * for (list in lists) {
+ *   regex.findAll(list)
+ * }
+ *
+ * Matching uses java.util.regex, which backtracks: patterns like
+ * "({0}|{1})*{2}" can take exponential time. Use setStepBudget to
+ * abort such cases, or NativeListRegex, which always takes linear time.
+ *
+ * Instances are thread-safe.
+ *
+ * @author mgropp
+ */
+public class CompiledListRegex<T> {
+	/** characters for the first combinations (same as ListRegex always used) */
+	private static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopqrstuvwxyz_";
+
+	/** further combinations are mapped to the private use area */
+	private static final char EXTRA_LETTERS_START = '\uE000';
+	private static final int MAX_LETTERS = LETTERS.length() + ('\uF8FF' - EXTRA_LETTERS_START + 1);
+
+	/** list items not matched by any closure */
+	private static final char NO_MATCH_LETTER = ' ';
+
+	/** a character group no character is in, for closures that never matched */
+	private static final String NO_MATCH_PATTERN = "[^\\x00-\\uFFFF]";
+
+	private final String pattern;
+	private final Closure[] closures;
+	private final MessageFormat format;
+
+	/** group indices by name (unmodifiable) */
+	private final Map<String,Integer> groupNames;
+
+	private volatile Encoding encoding;
+
+	/** closure matches of elements seen before, or null */
+	private volatile IdentityCache<BitSet> cache = null;
+
+	/** maximum number of steps per operation, 0 for no limit */
+	private volatile long stepBudget = 0L;
+
+	/**
+	 * The encoded list, counting character accesses by the regex engine
+	 * (one per step) and aborting when the budget is used up.
+	 */
+	private class BudgetCharSequence implements CharSequence {
+		private final CharSequence chars;
+		private final long budget;
+		private long steps = 0L;
+
+		BudgetCharSequence(CharSequence chars, long budget) {
+			this.chars = chars;
+			this.budget = budget;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++steps > budget) {
+				throw new StepBudgetExceededException(pattern, budget, chars.length());
+			}
+			return chars.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return chars.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return chars.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return chars.toString();
+		}
+	}
+
+	/**
+	 * Characters assigned to the combinations of closure matches seen
+	 * so far, and the pattern compiled for them.
+	 * Never modified, a new Encoding replaces the old one.
+	 */
+	private static class Encoding {
+		public final Map<BitSet,Character> letters;
+		public final Pattern pattern;
+
+		public Encoding(Map<BitSet,Character> letters, Pattern pattern) {
+			this.letters = letters;
+			this.pattern = pattern;
+		}
+	}
+
+	/**
+	 * @param pattern
+	 *   The regular expression.
+	 *   Use {0}, {1}, ... to refer to the closures to match list items.
+	 *   (Uses MessageFormat.format internally.)
+	 *   DON'T USE PLAIN CHARACTERS! (We're not matching strings here!)
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @throws java.util.regex.PatternSyntaxException
+	 *   if the pattern is not a valid regular expression
+	 */
+	public CompiledListRegex(String pattern, List<Closure> closures) {
+		this.pattern = pattern;
+		this.closures = closures.toArray(new Closure[closures.size()]);
+		this.format = new MessageFormat(pattern);
+		this.encoding = createEncoding(new HashMap<BitSet,Character>());
+		this.groupNames = Collections.unmodifiableMap(findGroupNames(encoding.pattern.pattern()));
+	}
+
+	/**
+	 * Find the first match of the regular expression in a list.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups, may be null
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups, may be null
+	 * @return
+	 *   the matching part of the list, or null if there is no match
+	 */
+	public Collection<T> find(
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		Matcher matcher = matcher(list);
+
+		if (matcher.find()) {
+			addGroups(matcher, list, groups, namedGroups);
+			return list.subList(matcher.start(), matcher.end());
+		}
+
+		return null;
+	}
+
+	public Collection<T> find(List<T> list, List<? extends Collection<T>> groups) {
+		return find(list, groups, null);
+	}
+
+	public Collection<T> find(List<T> list) {
+		return find(list, null, null);
+	}
+
+	/**
+	 * Find all matches of the regular expression in a list.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups (one list per match),
+	 *   may be null
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups (one map per match),
+	 *   may be null
+	 * @return
+	 *   the matching parts of the list
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Collection<? extends Collection<T>> findAll(
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups,
+		List<? extends Map<String,Collection<T>>> namedGroups
+	) {
+		Matcher matcher = matcher(list);
+
+		List<Collection<T>> result = new ArrayList<>();
+		if (groups != null) {
+			groups.clear();
+		}
+		if (namedGroups != null) {
+			namedGroups.clear();
+		}
+
+		while (matcher.find()) {
+			result.add(list.subList(matcher.start(), matcher.end()));
+
+			List<Collection<T>> matchGroup = null;
+			Map<String,Collection<T>> matchNamedGroup = null;
+			if (groups != null) {
+				matchGroup = new ArrayList<>(matcher.groupCount()+1);
+				((List)groups).add(matchGroup);
+			}
+			if (namedGroups != null) {
+				matchNamedGroup = new LinkedHashMap<>();
+				((List)namedGroups).add(matchNamedGroup);
+			}
+			addGroups(matcher, list, matchGroup, matchNamedGroup);
+		}
+
+		return result;
+	}
+
+	public Collection<? extends Collection<T>> findAll(
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups
+	) {
+		return findAll(list, groups, null);
+	}
+
+	public Collection<? extends Collection<T>> findAll(List<T> list) {
+		return findAll(list, null, null);
+	}
+
+	/**
+	 * Check whether the regular expression matches anywhere in a list.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   true iff find would find a match
+	 */
+	public boolean containsMatch(List<T> list) {
+		return matcher(list).find();
+	}
+
+	/**
+	 * Count the matches of the regular expression in a list,
+	 * without creating objects per match.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   the number of matches findAll would return
+	 */
+	public int count(List<T> list) {
+		Matcher matcher = matcher(list);
+
+		int count = 0;
+		while (matcher.find()) {
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Find all matches of the regular expression in a list, without
+	 * creating objects per match.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   start and end (exclusive) of all matches, two entries per match
+	 */
+	public int[] findAllOffsets(List<T> list) {
+		Matcher matcher = matcher(list);
+
+		int[] result = new int[16];
+		int count = 0;
+		while (matcher.find()) {
+			if (count + 2 > result.length) {
+				result = Arrays.copyOf(result, 2*result.length);
+			}
+			result[count++] = matcher.start();
+			result[count++] = matcher.end();
+		}
+
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Find all matches of the regular expression in a list and pass their
+	 * offsets to a visitor, without creating objects per match.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   also pass the offsets of capturing groups
+	 * @param visitor
+	 *   receives the matches, in order
+	 */
+	public void findAll(List<T> list, boolean groups, ListMatchVisitor visitor) {
+		Matcher matcher = matcher(list);
+
+		int[] offsets = new int[groups ? 2*(matcher.groupCount() + 1) : 2];
+		while (matcher.find()) {
+			for (int i = 0; i < offsets.length; i += 2) {
+				offsets[i] = matcher.start(i / 2);
+				offsets[i + 1] = matcher.end(i / 2);
+			}
+			visitor.visit(offsets);
+		}
+	}
+
+	/**
+	 * Replace all matches of the regular expression in a list.
+	 *
+	 * Example:
+	 * regex.replaceAll(list, { List match -> [ match.sum() ] })
+	 * regex.replaceAll(list, { List match, List groups -> groups[2] + groups[1] })
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param replacer
+	 *   Called for each match (and its capturing groups if the closure
+	 *   takes two parameters), returns the collection of elements to put
+	 *   in place of the match (or null to remove it).
+	 * @return
+	 *   a new list with the matches replaced
+	 */
+	public List<T> replaceAll(List<T> list, Closure replacer) {
+		ListRewriting.Replacer<T> visitor = new ListRewriting.Replacer<T>(list, replacer);
+		findAll(list, visitor.wantsGroups(), visitor);
+		return visitor.finish();
+	}
+
+	/**
+	 * Split a list around the matches of the regular expression.
+	 * Like Pattern.split with a negative limit, empty parts are kept
+	 * (but an empty match at the beginning does not cause an empty part).
+	 *
+	 * @param list
+	 *   The list to split
+	 * @return
+	 *   the parts of the list between the matches (new lists)
+	 */
+	public List<List<T>> split(List<T> list) {
+		ListRewriting.Splitter<T> visitor = new ListRewriting.Splitter<T>(list);
+		findAll(list, false, visitor);
+		return visitor.finish();
+	}
+
+	/**
+	 * Try to match an entire list with the regular expression.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups, may be null
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups, may be null
+	 * @return
+	 *   true iff the entire list matches
+	 */
+	public boolean matches(
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		Matcher matcher = matcher(list);
+
+		if (matcher.matches()) {
+			addGroups(matcher, list, groups, namedGroups);
+			return true;
+		}
+
+		return false;
+	}
+
+	public boolean matches(List<T> list, List<? extends Collection<T>> groups) {
+		return matches(list, groups, null);
+	}
+
+	public boolean matches(List<T> list) {
+		return matches(list, null, null);
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Remember the closure results for up to size distinct elements
+	 * (by identity), across calls and lists.
+	 * This pays off if the lists consist of the same objects over and over
+	 * (e.g. interned tokens) and the closures are expensive.
+	 * The least recently used elements are forgotten first.
+	 * Don't use this if the closure results for an element can change.
+	 *
+	 * @param size
+	 *   maximum number of elements to remember, 0 to disable caching
+	 */
+	public void setCacheSize(int size) {
+		this.cache = (size > 0) ? new IdentityCache<BitSet>(size) : null;
+	}
+
+	public int getCacheSize() {
+		IdentityCache<BitSet> current = cache;
+		return (current == null) ? 0 : current.getMaxSize();
+	}
+
+	/**
+	 * Limit the work of each find, findAll, matches, ... call, so a
+	 * pattern that backtracks catastrophically can't hang the thread.
+	 * A step is one look at a list element by the regex engine; a
+	 * well-behaved pattern needs a small multiple of the list length.
+	 *
+	 * @param steps
+	 *   maximum number of steps per call, 0 for no limit
+	 * @throws StepBudgetExceededException
+	 *   (from the matching methods) if the budget is used up
+	 */
+	public void setStepBudget(long steps) {
+		if (steps < 0) {
+			throw new IllegalArgumentException("Negative step budget: " + steps);
+		}
+		this.stepBudget = steps;
+	}
+
+	public long getStepBudget() {
+		return stepBudget;
+	}
+
+	/**
+	 * @return
+	 *   the indices of the named groups (as used for groups and
+	 *   ListMatchVisitor offsets), by name
+	 */
+	public Map<String,Integer> getGroupNames() {
+		return groupNames;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void addGroups(
+		Matcher matcher,
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		if (groups != null) {
+			groups.clear();
+			for (int i = 0; i <= matcher.groupCount(); i++) {
+				if (matcher.start(i) < 0 || matcher.end(i) < 0) {
+					groups.add(null);
+					continue;
+				}
+				((List)groups).add(list.subList(matcher.start(i), matcher.end(i)));
+			}
+		}
+
+		if (namedGroups != null) {
+			// Matcher.start(String) only exists since Java 8,
+			// so we look up the group indices ourselves.
+			namedGroups.clear();
+			for (Map.Entry<String,Integer> entry : groupNames.entrySet()) {
+				int i = entry.getValue();
+				namedGroups.put(
+					entry.getKey(),
+					(matcher.start(i) < 0) ? null : list.subList(matcher.start(i), matcher.end(i))
+				);
+			}
+		}
+	}
+
+	/**
+	 * Find the named groups "(?<name>...)" in a regular expression
+	 * and determine their group indices.
+	 */
+	private static Map<String,Integer> findGroupNames(String regex) {
+		Map<String,Integer> names = new LinkedHashMap<>();
+		int group = 0;
+		// nesting depth of character classes
+		int classDepth = 0;
+
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				if (regex.startsWith("Q", i + 1)) {
+					int end = regex.indexOf("\\E", i + 2);
+					i = (end < 0) ? regex.length() : end + 1;
+				} else {
+					i++;
+				}
+			} else if (c == '[') {
+				classDepth++;
+				// a ']' right at the start of a class is a literal
+				if (regex.startsWith("^", i + 1)) {
+					i++;
+				}
+				if (regex.startsWith("]", i + 1)) {
+					i++;
+				}
+			} else if (c == ']' && classDepth > 0) {
+				classDepth--;
+			} else if (c == '(' && classDepth == 0) {
+				if (!regex.startsWith("?", i + 1)) {
+					group++;
+				} else if (
+					regex.startsWith("<", i + 2) &&
+					i + 3 < regex.length() &&
+					Character.isLetter(regex.charAt(i + 3))
+				) {
+					group++;
+					int end = regex.indexOf('>', i + 3);
+					names.put(regex.substring(i + 3, end), group);
+				}
+			}
+		}
+
+		return names;
+	}
+
+	/**
+	 * Convert the list to a string (one character per list item)
+	 * and return a matcher for it.
+	 */
+	private Matcher matcher(List<T> list) {
+		Encoding current = encoding;
+
+		StringBuilder sb = new StringBuilder(list.size());
+		List<Integer> unknownIndices = null;
+		List<BitSet> unknownMatches = null;
+
+		IdentityCache<BitSet> currentCache = cache;
+		BitSet scratch = new BitSet(closures.length);
+		int ti = 0;
+		for (T t : list) {
+			BitSet matching = (currentCache == null) ? null : currentCache.get(t);
+			if (matching == null) {
+				// Check which closures match.
+				matching = (currentCache == null) ? scratch : new BitSet(closures.length);
+				matching.clear();
+				for (int ci = 0; ci < closures.length; ci++) {
+					if (DefaultTypeTransformation.castToBoolean(closures[ci].call(t))) {
+						matching.set(ci);
+					}
+				}
+
+				if (currentCache != null) {
+					currentCache.put(t, matching);
+				}
+			}
+
+			if (matching.isEmpty()) {
+				sb.append(NO_MATCH_LETTER);
+			} else {
+				Character letter = current.letters.get(matching);
+				if (letter != null) {
+					sb.append(letter.charValue());
+				} else {
+					// new combination, we'll fill this in later
+					if (unknownIndices == null) {
+						unknownIndices = new ArrayList<>();
+						unknownMatches = new ArrayList<>();
+					}
+					unknownIndices.add(ti);
+					unknownMatches.add((BitSet)matching.clone());
+					sb.append(NO_MATCH_LETTER);
+				}
+			}
+
+			ti++;
+		}
+
+		if (unknownIndices != null) {
+			current = extendEncoding(unknownMatches);
+			for (int i = 0; i < unknownIndices.size(); i++) {
+				sb.setCharAt(unknownIndices.get(i), current.letters.get(unknownMatches.get(i)));
+			}
+		}
+
+		long budget = stepBudget;
+		return current.pattern.matcher((budget > 0) ? new BudgetCharSequence(sb, budget) : sb);
+	}
+
+	/**
+	 * Assign characters to new combinations of closure matches
+	 * and compile the pattern again.
+	 */
+	private synchronized Encoding extendEncoding(List<BitSet> combinations) {
+		Map<BitSet,Character> letters = null;
+		for (BitSet combination : combinations) {
+			if (encoding.letters.containsKey(combination) || (letters != null && letters.containsKey(combination))) {
+				continue;
+			}
+
+			if (letters == null) {
+				letters = new HashMap<>(encoding.letters);
+			}
+
+			int li = letters.size();
+			if (li >= MAX_LETTERS) {
+				throw new RuntimeException("We're out of characters! Sorry, the expression is too complex for our simple approach.");
+			}
+
+			letters.put(
+				combination,
+				(li < LETTERS.length()) ? LETTERS.charAt(li) : (char)(EXTRA_LETTERS_START + li - LETTERS.length())
+			);
+		}
+
+		if (letters != null) {
+			encoding = createEncoding(letters);
+		}
+
+		return encoding;
+	}
+
+	private Encoding createEncoding(Map<BitSet,Character> letters) {
+		// Find character groups for the closures that match
+		// when they have to in the converted input.
+		// Example:
+		// closures 1 and 3 match => a
+		// closure 1 matches      => b
+		// closure 2 matches      => c
+		// closure 3 matches      => d
+		// closure 1: [ab]
+		// closure 2: [c]
+		// closure 3: [ad]
+		Object[] closurePatterns = new Object[closures.length];
+		for (int i = 0; i < closures.length; i++) {
+			StringBuilder sb = new StringBuilder("[");
+			for (Map.Entry<BitSet,Character> entry : letters.entrySet()) {
+				if (entry.getKey().get(i)) {
+					sb.append(entry.getValue().charValue());
+				}
+			}
+			sb.append(']');
+
+			closurePatterns[i] = (sb.length() > 2) ? sb.toString() : NO_MATCH_PATTERN;
+		}
+
+		String regex;
+		synchronized (format) {
+			regex = format.format(closurePatterns);
+		}
+
+		return new Encoding(letters, Pattern.compile(regex));
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.List;
+
+/**
+ * NativeListRegex for double[] arrays: the values are matched with
+ * DoubleElementPredicates, without boxing or dynamic dispatch.
+ *
+ * Matches are returned as offsets into the array.
+ *
+ * Example (Java):
+ * DoubleListRegex regex = new DoubleListRegex("{0}{1}+", Arrays.asList(isNaN, isPositive));
+ * int[] match = regex.find(values); // start and end, or null
+ *
+ * Instances are thread-safe.
+ *
+ * @author mgropp
+ */
+public class DoubleListRegex {
+	public static interface DoubleElementPredicate {
+		boolean test(double value);
+	}
+
+	private final ListPattern pattern;
+	private final DoubleElementPredicate[] predicates;
+
+	/** the predicates referenced in the pattern */
+	private final int[] used;
+
+	/**
+	 * @param pattern
+	 *   The regular expression (see NativeListRegex).
+	 *   Use {0}, {1}, ... to refer to the predicates.
+	 * @param predicates
+	 *   Predicates to match values.
+	 * @throws IllegalArgumentException
+	 *   if the pattern cannot be parsed or refers to a missing predicate
+	 */
+	public DoubleListRegex(String pattern, List<? extends DoubleElementPredicate> predicates) {
+		this.pattern = ListPattern.compile(pattern);
+		this.predicates = predicates.toArray(new DoubleElementPredicate[predicates.size()]);
+		this.used = this.pattern.usedPredicates(this.predicates.length);
+	}
+
+	/**
+	 * Find the first match of the regular expression.
+	 *
+	 * @param values
+	 *   The values to run the regex on
+	 * @return
+	 *   start and end (exclusive) of the match, followed by start and end
+	 *   of each capturing group (-1 if the group did not participate),
+	 *   or null if there is no match
+	 */
+	public int[] find(double[] values) {
+		ListVM vm = new ListVM(pattern, true);
+		vm.length = values.length;
+
+		if (vm.search(PredicateBits.evaluate(predicates, used, values), 0, false)) {
+			return vm.matchCaps.clone();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Find all matches of the regular expression.
+	 *
+	 * @param values
+	 *   The values to run the regex on
+	 * @return
+	 *   start and end (exclusive) of all matches, two entries per match
+	 */
+	public int[] findAll(double[] values) {
+		ListVM vm = new ListVM(pattern, false);
+		vm.length = values.length;
+		return vm.searchAll(PredicateBits.evaluate(predicates, used, values));
+	}
+
+	/**
+	 * Find all matches of the regular expression and pass their offsets
+	 * to a visitor, without creating objects per match.
+	 *
+	 * @param values
+	 *   The values to run the regex on
+	 * @param groups
+	 *   also pass the offsets of capturing groups
+	 * @param visitor
+	 *   receives the matches, in order
+	 */
+	public void findAll(double[] values, boolean groups, ListMatchVisitor visitor) {
+		ListVM vm = new ListVM(pattern, groups);
+		vm.length = values.length;
+		vm.searchAll(PredicateBits.evaluate(predicates, used, values), visitor);
+	}
+
+	/**
+	 * Try to match all values with the regular expression.
+	 *
+	 * @param values
+	 *   The values to run the regex on
+	 * @return
+	 *   true iff the entire array matches
+	 */
+	public boolean matches(double[] values) {
+		ListVM vm = new ListVM(pattern, false);
+		vm.length = values.length;
+		vm.requireEnd = true;
+		return vm.search(PredicateBits.evaluate(predicates, used, values), 0, true);
+	}
+
+	public String getPattern() {
+		return pattern.source;
+	}
+
+	@Override
+	public String toString() {
+		return pattern.source;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache keyed by object identity, evicting the least recently
+ * used entry when full.
+ * Used to remember predicate results for elements that occur again
+ * (e.g. interned tokens), in other lists or later calls.
+ *
+ * Thread-safe.
+ *
+ * @author mgropp
+ */
+final class IdentityCache<V> {
+	private final int maxSize;
+	private final LinkedHashMap<Key,V> map;
+
+	/**
+	 * Identity wrapper: equal only to a key for the same object.
+	 */
+	private static final class Key {
+		final Object object;
+
+		Key(Object object) {
+			this.object = object;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(object);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return (other instanceof Key) && ((Key)other).object == object;
+		}
+	}
+
+	IdentityCache(final int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+		}
+
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<Key,V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return
+	 *   the cached value for object, or null
+	 */
+	synchronized V get(Object object) {
+		return map.get(new Key(object));
+	}
+
+	synchronized void put(Object object, V value) {
+		map.put(new Key(object), value);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the matches of a NativeListRegex in a list that keeps growing
+ * (elements are only ever appended):
+ *
+ * IncrementalListMatcher<String> matcher = regex.incrementalMatcher(lines)
+ * lines.add(...)
+ * matcher.update() // matches completed by the new elements
+ * ...
+ * matcher.finish() // matches at the end of the list
+ *
+ * update only looks at the elements appended since the last call, so its
+ * cost does not depend on the length of the list.
+ * All matches together are the same findAll returns for the final list.
+ * A match is reported as soon as later elements can't change it
+ * (see StreamingListMatcher), so matches at the end of the list (and
+ * matches using $) are only reported by finish.
+ *
+ * Not thread-safe.
+ *
+ * @author mgropp
+ */
+public class IncrementalListMatcher<T> {
+	private final List<T> list;
+	private final StreamingListMatcher<T> matcher;
+
+	/** matches found by the current update */
+	private List<List<T>> matches = new ArrayList<>();
+
+	/** number of elements passed to the matcher */
+	private int position = 0;
+
+	IncrementalListMatcher(
+		ListPattern pattern,
+		NativeListRegex.ElementPredicate<Object>[] predicates,
+		List<T> list
+	) {
+		this.list = list;
+		this.matcher = new StreamingListMatcher<T>(
+			pattern,
+			predicates,
+			new StreamingListMatcher.MatchListener<T>() {
+				@Override
+				public void match(long start, List<T> elements) {
+					matches.add(elements);
+				}
+			}
+		);
+	}
+
+	/**
+	 * Process the elements appended since the last call.
+	 *
+	 * @return
+	 *   the matches completed by the new elements
+	 * @throws IllegalStateException
+	 *   if the list has become shorter
+	 */
+	public List<List<T>> update() {
+		int size = list.size();
+		if (size < position) {
+			throw new IllegalStateException("The list has become shorter (" + position + " -> " + size + ").");
+		}
+
+		if (size > position) {
+			for (T element : list.subList(position, size)) {
+				matcher.add(element);
+			}
+			position = size;
+		}
+
+		return takeMatches();
+	}
+
+	/**
+	 * Process the remaining elements and treat the current end of the list
+	 * as its final end. No elements must be added afterwards.
+	 *
+	 * @return
+	 *   the remaining matches
+	 */
+	public List<List<T>> finish() {
+		List<List<T>> result = update();
+		matcher.finish();
+		result.addAll(takeMatches());
+		return result;
+	}
+
+	/**
+	 * @return
+	 *   the number of list elements processed so far
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	private List<List<T>> takeMatches() {
+		List<List<T>> result = matches;
+		matches = new ArrayList<>();
+		return result;
+	}
+}
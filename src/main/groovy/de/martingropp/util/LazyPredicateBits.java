@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.List;
+import java.util.ListIterator;
+import java.util.RandomAccess;
+
+/**
+ * Predicate results that are only computed when the VM asks for them.
+ * Each predicate is evaluated at most once per element.
+ *
+ * Memory is allocated in pages, so matching the beginning of a long
+ * list does not cost anything for the rest of it.
+ *
+ * @author mgropp
+ */
+final class LazyPredicateBits implements ListVM.Input {
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+	private final NativeListRegex.ElementPredicate<Object>[] predicates;
+	private final List<?> list;
+	private final int words;
+
+	/** which results are known, and the results */
+	private final long[][] known;
+	private final long[][] values;
+
+	// element access for lists without random access
+	private ListIterator<?> iterator = null;
+	private int lastIndex = -1;
+	private Object lastElement = null;
+
+	LazyPredicateBits(NativeListRegex.ElementPredicate<Object>[] predicates, List<?> list) {
+		this.predicates = predicates;
+		this.list = list;
+		this.words = Math.max(1, (predicates.length + 63) >>> 6);
+
+		int pages = (list.size() + PAGE_MASK) >>> PAGE_BITS;
+		this.known = new long[pages][];
+		this.values = new long[pages][];
+	}
+
+	@Override
+	public boolean test(int index, int predicate) {
+		int page = index >>> PAGE_BITS;
+		long[] pageKnown = known[page];
+		long[] pageValues = values[page];
+		if (pageKnown == null) {
+			pageKnown = known[page] = new long[words << PAGE_BITS];
+			pageValues = values[page] = new long[words << PAGE_BITS];
+		}
+
+		int offset = (index & PAGE_MASK)*words + (predicate >>> 6);
+		long bit = 1L << predicate;
+		if ((pageKnown[offset] & bit) == 0) {
+			pageKnown[offset] |= bit;
+			if (predicates[predicate].test(element(index))) {
+				pageValues[offset] |= bit;
+			}
+		}
+
+		return (pageValues[offset] & bit) != 0;
+	}
+
+	private Object element(int index) {
+		if (index == lastIndex) {
+			return lastElement;
+		}
+
+		if (list instanceof RandomAccess) {
+			lastElement = list.get(index);
+		} else {
+			// The VM moves forward, so walking the list is cheap.
+			if (iterator == null) {
+				iterator = list.listIterator(index);
+			}
+			while (iterator.nextIndex() > index) {
+				iterator.previous();
+			}
+			while (iterator.nextIndex() < index) {
+				iterator.next();
+			}
+			lastElement = iterator.next();
+		}
+
+		lastIndex = index;
+		return lastElement;
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The lines ProcessWatcher.waitForLine calls are waiting for,
+ * indexed so that checking an output line doesn't take one regex
+ * evaluation per waiter:
+ * exact lines (and patterns without meta characters) are looked up in
+ * a hash map, and the other patterns are combined into a single
+ * alternation with one capturing group per distinct pattern.
+ * A line matching no trigger costs one hash lookup and one match of the
+ * alternation (which still tries each alternative, but without the
+ * overhead of a separate Matcher per waiter).
+ * When the alternation matches, its group tells which pattern matched;
+ * only the patterns after it have to be checked on their own, since the
+ * ones before it didn't match.
+ *
+ * The alternation is only compiled again when a new pattern is added, or
+ * when too many of its patterns have no waiters anymore (removing a
+ * trigger just leaves its alternative unused).
+ *
+ * Thread-safe.
+ *
+ * @author mgropp
+ */
+final class LineTriggerIndex {
+	static class Trigger {
+		/** the pattern, or null */
+		final Pattern pattern;
+		/** the line matched exactly (line or a literal pattern), or null */
+		final String key;
+		final Semaphore semaphore = new Semaphore(0);
+
+		// when the semaphore is released:
+		// matched is true if the line matched and false if
+		// the process exited.
+		// -> no synchronization necessary.
+		boolean matched = false;
+
+		Trigger(String line) {
+			this.pattern = null;
+			this.key = line;
+		}
+
+		Trigger(Pattern pattern) {
+			this.pattern = pattern;
+			this.key = literal(pattern);
+		}
+	}
+
+	/** flags that can be written inline, and their letters */
+	private static final int[] INLINE_FLAGS = {
+		Pattern.CASE_INSENSITIVE, Pattern.UNIX_LINES, Pattern.MULTILINE,
+		Pattern.DOTALL, Pattern.UNICODE_CASE, Pattern.UNICODE_CHARACTER_CLASS
+	};
+	private static final String INLINE_FLAG_LETTERS = "idmsuU";
+
+	private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+	/** unused alternatives tolerated before the alternation is rebuilt */
+	private static final int MIN_UNUSED = 16;
+
+	/**
+	 * A pattern in the alternation, and the triggers waiting for it.
+	 */
+	private static class Alternative {
+		final Pattern pattern;
+		final String key;
+		final List<Trigger> triggers = new ArrayList<>(1);
+		/** the group of this pattern in the alternation (0: not in it yet) */
+		int group = 0;
+
+		Alternative(Pattern pattern, String key) {
+			this.pattern = pattern;
+			this.key = key;
+		}
+	}
+
+	private final Map<String,List<Trigger>> lines = new HashMap<>();
+
+	/** the combinable patterns, by flags and pattern (see key) */
+	private final Map<String,Alternative> alternativesByKey = new HashMap<>();
+
+	/** the combinable patterns in the order of the alternation */
+	private final List<Alternative> alternatives = new ArrayList<>();
+
+	/** number of alternatives without triggers */
+	private int unused = 0;
+
+	/** triggers whose patterns have to be checked separately */
+	private final List<Trigger> separate = new ArrayList<>();
+
+	/** alternation of the patterns in alternatives (null: none yet) */
+	private Pattern combined = null;
+
+	/** combined has to be built again (a pattern was added) */
+	private boolean changed = false;
+
+	/** set when the output has ended */
+	private boolean closed = false;
+
+	/** set when the first trigger is added */
+	private volatile boolean used = false;
+
+	/**
+	 * @return
+	 *   false if the output has already ended (trigger was not added)
+	 */
+	synchronized boolean add(Trigger trigger) {
+		if (closed) {
+			return false;
+		}
+		used = true;
+
+		if (trigger.key != null) {
+			List<Trigger> triggers = lines.get(trigger.key);
+			if (triggers == null) {
+				triggers = new ArrayList<>(1);
+				lines.put(trigger.key, triggers);
+			}
+			triggers.add(trigger);
+		} else if (isCombinable(trigger.pattern)) {
+			String key = key(trigger.pattern);
+			Alternative alternative = alternativesByKey.get(key);
+			if (alternative == null) {
+				alternative = new Alternative(trigger.pattern, key);
+				alternativesByKey.put(key, alternative);
+				alternatives.add(alternative);
+				changed = true;
+			} else if (alternative.triggers.isEmpty()) {
+				unused--;
+			}
+			alternative.triggers.add(trigger);
+		} else {
+			separate.add(trigger);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return
+	 *   true if triggers have been added (so lines have to be checked)
+	 */
+	boolean isUsed() {
+		return used;
+	}
+
+	/**
+	 * Remove trigger (nothing happens if it isn't there anymore).
+	 */
+	synchronized void remove(Trigger trigger) {
+		if (trigger.key != null) {
+			List<Trigger> triggers = lines.get(trigger.key);
+			if (triggers != null && triggers.remove(trigger) && triggers.isEmpty()) {
+				lines.remove(trigger.key);
+			}
+		} else if (!separate.remove(trigger)) {
+			Alternative alternative = alternativesByKey.get(key(trigger.pattern));
+			if (alternative != null && alternative.triggers.remove(trigger) && alternative.triggers.isEmpty()) {
+				unused++;
+			}
+		}
+	}
+
+	/**
+	 * Find and remove the triggers matching line.
+	 */
+	synchronized List<Trigger> match(String line) {
+		List<Trigger> result = lines.remove(line);
+		if (result == null) {
+			result = Collections.emptyList();
+		}
+
+		if (alternatives.size() > unused) {
+			result = matchAlternatives(line, result);
+		}
+
+		if (!separate.isEmpty()) {
+			for (Iterator<Trigger> it = separate.iterator(); it.hasNext(); ) {
+				Trigger trigger = it.next();
+				if (trigger.pattern.matcher(line).matches()) {
+					result = add(result, Collections.singletonList(trigger));
+					it.remove();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Remove all triggers; nothing can be added afterwards.
+	 *
+	 * @return
+	 *   the triggers
+	 */
+	synchronized List<Trigger> close() {
+		closed = true;
+
+		List<Trigger> result = new ArrayList<>(separate);
+		for (Alternative alternative : alternatives) {
+			result.addAll(alternative.triggers);
+		}
+		for (List<Trigger> triggers : lines.values()) {
+			result.addAll(triggers);
+		}
+
+		lines.clear();
+		alternativesByKey.clear();
+		alternatives.clear();
+		unused = 0;
+		separate.clear();
+		combined = null;
+
+		return result;
+	}
+
+	/**
+	 * Add the triggers of the alternatives matching line to result
+	 * (and remove them).
+	 */
+	private List<Trigger> matchAlternatives(String line, List<Trigger> result) {
+		if (changed || unused > Math.max(MIN_UNUSED, alternatives.size() - unused)) {
+			rebuild();
+			if (combined == null) {
+				return result;
+			}
+		}
+
+		Matcher matcher = combined.matcher(line);
+		if (!matcher.matches()) {
+			return result;
+		}
+
+		// the first alternative matching the line (ones before it don't match)
+		int first = 0;
+		while (matcher.start(alternatives.get(first).group) < 0) {
+			first++;
+		}
+		result = take(alternatives.get(first), result);
+
+		for (int i = first + 1; i < alternatives.size(); i++) {
+			Alternative alternative = alternatives.get(i);
+			if (!alternative.triggers.isEmpty() && alternative.pattern.matcher(line).matches()) {
+				result = take(alternative, result);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Move the triggers of alternative to result.
+	 */
+	private List<Trigger> take(Alternative alternative, List<Trigger> result) {
+		if (alternative.triggers.isEmpty()) {
+			return result;
+		}
+
+		result = add(result, alternative.triggers);
+		alternative.triggers.clear();
+		unused++;
+		return result;
+	}
+
+	/**
+	 * Drop the unused alternatives and compile the alternation of the
+	 * others, each in a capturing group.
+	 */
+	private void rebuild() {
+		changed = false;
+		for (Iterator<Alternative> it = alternatives.iterator(); it.hasNext(); ) {
+			Alternative alternative = it.next();
+			if (alternative.triggers.isEmpty()) {
+				it.remove();
+				alternativesByKey.remove(alternative.key);
+			}
+		}
+		unused = 0;
+
+		StringBuilder regex = new StringBuilder();
+		int group = 1;
+		for (Alternative alternative : alternatives) {
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			regex.append("((?").append(inlineFlags(alternative.pattern.flags())).append(':');
+			regex.append(alternative.pattern.pattern());
+			regex.append("))");
+
+			alternative.group = group;
+			// the groups of the pattern itself follow its own group
+			group += 1 + alternative.pattern.matcher("").groupCount();
+		}
+
+		try {
+			combined = Pattern.compile(regex.toString());
+		}
+		catch (PatternSyntaxException e) {
+			// shouldn't happen (see isCombinable), but just in case
+			for (Alternative alternative : alternatives) {
+				separate.addAll(alternative.triggers);
+			}
+			alternatives.clear();
+			alternativesByKey.clear();
+			combined = null;
+		}
+	}
+
+	private static List<Trigger> add(List<Trigger> result, List<Trigger> triggers) {
+		if (result.isEmpty()) {
+			result = new ArrayList<>();
+		}
+		result.addAll(triggers);
+		return result;
+	}
+
+	/**
+	 * @return
+	 *   a key for patterns that are the same regex with the same flags
+	 */
+	private static String key(Pattern pattern) {
+		return pattern.flags() + ":" + pattern.pattern();
+	}
+
+	/**
+	 * @return
+	 *   true if pattern can be part of an alternation with other patterns:
+	 *   all its flags can be written inline, and it doesn't use inline
+	 *   flags, named groups, back references or quotes.
+	 */
+	private static boolean isCombinable(Pattern pattern) {
+		int flags = pattern.flags();
+		for (int flag : INLINE_FLAGS) {
+			flags &= ~flag;
+		}
+		if (flags != 0) {
+			return false;
+		}
+
+		String regex = pattern.pattern();
+		for (int i = 0; i < regex.length() - 1; i++) {
+			char c = regex.charAt(i);
+			char next = regex.charAt(i + 1);
+			if (c == '\\') {
+				if (Character.isDigit(next) || next == 'k' || next == 'Q') {
+					return false;
+				}
+				i++;
+			} else if (c == '(' && next == '?' && i + 2 < regex.length()) {
+				// Inline flags: flags() includes them (in Java 8 even those
+				// in the middle of the pattern), so they would be applied to
+				// the whole pattern. Named groups: names must be unique.
+				char first = regex.charAt(i + 2);
+				if (Character.isLetter(first) || first == '-') {
+					return false;
+				}
+				if (first == '<' && i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3))) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return
+	 *   the only line pattern matches if it is a plain string
+	 *   (no flags, no meta characters), or null
+	 */
+	private static String literal(Pattern pattern) {
+		String regex = pattern.pattern();
+		if ((pattern.flags() & ~Pattern.LITERAL) != 0) {
+			return null;
+		}
+		if ((pattern.flags() & Pattern.LITERAL) != 0) {
+			return regex;
+		}
+
+		for (int i = 0; i < regex.length(); i++) {
+			if (META_CHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+				return null;
+			}
+		}
+		return regex;
+	}
+
+	private static String inlineFlags(int flags) {
+		StringBuilder letters = new StringBuilder();
+		for (int i = 0; i < INLINE_FLAGS.length; i++) {
+			if ((flags & INLINE_FLAGS[i]) != 0) {
+				letters.append(INLINE_FLAG_LETTERS.charAt(i));
+			}
+		}
+		return letters.toString();
+	}
+}
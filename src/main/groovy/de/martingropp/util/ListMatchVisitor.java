@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+/**
+ * Receives matches as offsets, without creating objects per match.
+ *
+ * Example:
+ * regex.findAll(list, false, { int[] offsets ->
+ *   total += offsets[1] - offsets[0]
+ * } as ListMatchVisitor)
+ *
+ * @author mgropp
+ */
+public interface ListMatchVisitor {
+	/**
+	 * @param offsets
+	 *   start and end (exclusive) of the match, followed by start and end
+	 *   of each capturing group (-1 if the group did not participate)
+	 *   if groups were requested.
+	 *   The array is reused for the next match, so copy what you need
+	 *   and don't modify it.
+	 */
+	void visit(int[] offsets);
+}
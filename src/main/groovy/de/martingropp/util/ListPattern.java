@@ -0,0 +1,1114 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A ListRegex pattern parsed and compiled to a program for ListVM.
+ *
+ * The pattern syntax is the one ListRegex uses: {0}, {1}, ... refer to
+ * predicates, single quotes work like in MessageFormat, and the regex
+ * operators . | ( ) (?: ) (?<name> ) * + ? ^ $ are supported, as well as counted
+ * repetition with quoted braces (e.g. "{0}'{'2,3}").
+ * Quantifiers may be reluctant ("*?"), possessive quantifiers are not
+ * supported.
+ *
+ * Element classes list predicates: [{0}{1}] matches an element matching
+ * any of them, [^{0}{1}] one matching none of them.
+ * Lookahead (?= ) (?! ) and lookbehind (?<= ) (?<! ) run their own
+ * program at the current position (lookbehind backwards, on the reversed
+ * list). Their content must have a bounded length (no * or +, like
+ * lookbehinds in java.util.regex), so each of them examines only a few
+ * elements and matching stays linear.
+ * Groups inside lookarounds are counted, but don't capture anything.
+ *
+ * Instances are immutable.
+ *
+ * @author mgropp
+ */
+final class ListPattern {
+	// instructions
+	/** consume an element matching predicate arg */
+	static final int PRED = 0;
+	/** consume any element */
+	static final int ANY = 1;
+	/** continue at arg (preferred) and at arg2 */
+	static final int SPLIT = 2;
+	/** continue at arg */
+	static final int JMP = 3;
+	/** store the current position in capture slot arg */
+	static final int SAVE = 4;
+	/** assert the beginning of the list */
+	static final int BOL = 5;
+	/** assert the end of the list */
+	static final int EOL = 6;
+	/** accept (arg: index of the alternative in a union) */
+	static final int MATCH = 7;
+	/** assert that there is an element and it doesn't match predicate arg */
+	static final int NOT = 8;
+	/** assert lookaround arg (arg2: LOOK_BEHIND, LOOK_NEGATIVE) */
+	static final int LOOK = 9;
+
+	// flags for LOOK
+	static final int LOOK_BEHIND = 1;
+	static final int LOOK_NEGATIVE = 2;
+
+	/** maximum number of instructions, to catch things like "'{'100000}" */
+	private static final int MAX_PROGRAM_SIZE = 1 << 20;
+
+	final String source;
+
+	/** the program */
+	final int[] ops;
+	final int[] args;
+	final int[] args2;
+
+	/** number of capturing groups (not counting the whole match) */
+	final int groupCount;
+
+	/** group indices by name (unmodifiable) */
+	final Map<String,Integer> groupNames;
+
+	/** predicates used in the pattern */
+	final BitSet predicates;
+
+	/** minimum length of a match */
+	final int minLength;
+
+	/** maximum length of a match, or -1 if unbounded */
+	final int maxLength;
+
+	/**
+	 * The programs of the lookarounds (see LOOK), matching from the
+	 * current position (lookbehinds are reversed, see reverse).
+	 */
+	final ListPattern[] lookarounds;
+
+	/**
+	 * maximum number of elements lookaheads examine after the current
+	 * position, or -1 if unbounded
+	 */
+	final int lookahead;
+
+	/**
+	 * maximum number of elements lookbehinds examine before the current
+	 * position, or -1 if unbounded
+	 */
+	final int lookbehind;
+
+	/** the first instruction of each pattern of a union (null for other patterns) */
+	final int[] entries;
+
+	/** the syntax tree (null for unions) */
+	private final Node root;
+
+	private ListPattern(
+		String source,
+		Node root,
+		int groupCount,
+		Map<String,Integer> groupNames,
+		BitSet predicates
+	) {
+		this.source = source;
+		this.groupCount = groupCount;
+		this.groupNames = Collections.unmodifiableMap(groupNames);
+		this.root = root;
+		this.predicates = predicates;
+		this.minLength = root.minLength();
+		this.maxLength = root.maxLength();
+		this.lookahead = root.lookahead();
+		this.lookbehind = root.lookbehind();
+		this.entries = null;
+
+		Builder builder = new Builder();
+		builder.emit(SAVE, 0, 0);
+		root.emit(builder);
+		builder.emit(SAVE, 1, 0);
+		builder.emit(MATCH, 0, 0);
+
+		this.ops = Arrays.copyOf(builder.ops, builder.size);
+		this.args = Arrays.copyOf(builder.args, builder.size);
+		this.args2 = Arrays.copyOf(builder.args2, builder.size);
+		this.lookarounds = builder.lookarounds.toArray(new ListPattern[builder.lookarounds.size()]);
+	}
+
+	private ListPattern(
+		String source,
+		Builder builder,
+		int groupCount,
+		BitSet predicates,
+		int minLength,
+		int maxLength,
+		int lookahead,
+		int lookbehind,
+		int[] entries
+	) {
+		this.source = source;
+		this.groupCount = groupCount;
+		this.groupNames = Collections.emptyMap();
+		this.root = null;
+		this.predicates = predicates;
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.lookahead = lookahead;
+		this.lookbehind = lookbehind;
+		this.entries = entries;
+		this.ops = Arrays.copyOf(builder.ops, builder.size);
+		this.args = Arrays.copyOf(builder.args, builder.size);
+		this.args2 = Arrays.copyOf(builder.args2, builder.size);
+		this.lookarounds = builder.lookarounds.toArray(new ListPattern[builder.lookarounds.size()]);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *   if the pattern cannot be parsed
+	 */
+	static ListPattern compile(String pattern) {
+		Parser parser = new Parser(pattern);
+		Node root = parser.parse();
+		return new ListPattern(pattern, root, parser.groupCount, parser.groupNames, parser.predicates);
+	}
+
+	/**
+	 * Combine patterns into one program that tries all of them.
+	 * The MATCH instruction of pattern i has arg i, see ListVM.searchSet,
+	 * and its code starts at entries[i].
+	 * Capturing groups are dropped.
+	 */
+	static ListPattern union(ListPattern[] patterns) {
+		Builder builder = new Builder();
+		BitSet predicates = new BitSet();
+		StringBuilder source = new StringBuilder();
+		int minLength = Integer.MAX_VALUE;
+		int maxLength = 0;
+		int lookahead = 0;
+		int lookbehind = 0;
+
+		// SPLIT chain to the start of each pattern (filled in below)
+		int[] splits = new int[patterns.length];
+		int[] entries = new int[patterns.length];
+		for (int i = 0; i < patterns.length - 1; i++) {
+			splits[i] = builder.emit(SPLIT, 0, 0);
+		}
+
+		for (int i = 0; i < patterns.length; i++) {
+			ListPattern pattern = patterns[i];
+			int offset = builder.size;
+			entries[i] = offset;
+			int lookOffset = builder.lookarounds.size();
+			builder.lookarounds.addAll(Arrays.asList(pattern.lookarounds));
+			if (i < patterns.length - 1) {
+				builder.args[splits[i]] = offset;
+				builder.args2[splits[i]] = (i < patterns.length - 2) ? splits[i + 1] : -1;
+			} else if (i > 0) {
+				builder.args2[splits[i - 1]] = offset;
+			}
+
+			for (int pc = 0; pc < pattern.size(); pc++) {
+				int op = pattern.ops[pc];
+				int arg = pattern.args[pc];
+				int arg2 = pattern.args2[pc];
+				if (op == JMP || op == SPLIT) {
+					arg += offset;
+					arg2 += offset;
+				} else if (op == MATCH) {
+					arg = i;
+				} else if (op == LOOK) {
+					arg += lookOffset;
+				}
+				builder.emit(op, arg, arg2);
+			}
+
+			predicates.or(pattern.predicates);
+			source.append(i == 0 ? "" : " | ").append(pattern.source);
+			minLength = Math.min(minLength, pattern.minLength);
+			maxLength = max(maxLength, pattern.maxLength);
+			lookahead = max(lookahead, pattern.lookahead);
+			lookbehind = max(lookbehind, pattern.lookbehind);
+		}
+
+		return new ListPattern(
+			source.toString(), builder, 0, predicates, minLength, maxLength, lookahead, lookbehind, entries
+		);
+	}
+
+	/**
+	 * @return
+	 *   a pattern matching exactly the reversed matches of this one
+	 *   (to search backwards on reversed input).
+	 *   The preferences between alternatives are not meaningful.
+	 */
+	ListPattern reverse() {
+		if (root == null) {
+			throw new UnsupportedOperationException("Unions can't be reversed.");
+		}
+		return new ListPattern(source, root.reverse(), groupCount, groupNames, predicates);
+	}
+
+	int size() {
+		return ops.length;
+	}
+
+	/**
+	 * @param count
+	 *   number of predicates available
+	 * @return
+	 *   the indices of the predicates used in the pattern
+	 * @throws IllegalArgumentException
+	 *   if the pattern refers to a predicate >= count
+	 */
+	int[] usedPredicates(int count) {
+		if (predicates.length() > count) {
+			throw new IllegalArgumentException(
+				"The pattern refers to predicate {" + (predicates.length() - 1) + "}, " +
+				"but there are only " + count + " predicates."
+			);
+		}
+
+		int[] used = new int[predicates.cardinality()];
+		int i = 0;
+		for (int p = predicates.nextSetBit(0); p >= 0; p = predicates.nextSetBit(p + 1)) {
+			used[i++] = p;
+		}
+		return used;
+	}
+
+	/**
+	 * @return
+	 *   the number of capture slots for the whole match
+	 *   (and all groups if groups is true)
+	 */
+	int slots(boolean groups) {
+		return groups ? 2*(groupCount + 1) : 2;
+	}
+
+	@Override
+	public String toString() {
+		return source;
+	}
+
+	/**
+	 * @return
+	 *   the maximum of two lengths (-1: unbounded)
+	 */
+	private static int max(int a, int b) {
+		return (a < 0 || b < 0) ? -1 : Math.max(a, b);
+	}
+
+	/**
+	 * @return
+	 *   the sum of two lengths (-1: unbounded)
+	 */
+	private static int add(int a, int b) {
+		if (a < 0 || b < 0) {
+			return -1;
+		}
+		long sum = (long)a + b;
+		return (sum > Integer.MAX_VALUE) ? -1 : (int)sum;
+	}
+
+	private static class Builder {
+		int[] ops = new int[16];
+		int[] args = new int[16];
+		int[] args2 = new int[16];
+		int size = 0;
+		final List<ListPattern> lookarounds = new ArrayList<>();
+
+		int emit(int op, int arg, int arg2) {
+			if (size == ops.length) {
+				if (size >= MAX_PROGRAM_SIZE) {
+					throw new IllegalArgumentException("Pattern too large.");
+				}
+				ops = Arrays.copyOf(ops, 2*size);
+				args = Arrays.copyOf(args, 2*size);
+				args2 = Arrays.copyOf(args2, 2*size);
+			}
+
+			ops[size] = op;
+			args[size] = arg;
+			args2[size] = arg2;
+			return size++;
+		}
+	}
+
+	// Syntax tree
+	private static abstract class Node {
+		abstract void emit(Builder builder);
+		abstract int minLength();
+		/** @return the maximum length or -1 if unbounded */
+		abstract int maxLength();
+		/** @return a node matching the reversed sequences */
+		abstract Node reverse();
+
+		/** @return see ListPattern.lookahead */
+		int lookahead() {
+			return 0;
+		}
+
+		/** @return see ListPattern.lookbehind */
+		int lookbehind() {
+			return 0;
+		}
+	}
+
+	private static class Predicate extends Node {
+		final int index;
+
+		Predicate(int index) {
+			this.index = index;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			builder.emit(PRED, index, 0);
+		}
+
+		@Override
+		Node reverse() {
+			return this;
+		}
+
+		@Override
+		int minLength() {
+			return 1;
+		}
+
+		@Override
+		int maxLength() {
+			return 1;
+		}
+	}
+
+	private static class Any extends Node {
+		@Override
+		void emit(Builder builder) {
+			builder.emit(ANY, 0, 0);
+		}
+
+		@Override
+		Node reverse() {
+			return this;
+		}
+
+		@Override
+		int minLength() {
+			return 1;
+		}
+
+		@Override
+		int maxLength() {
+			return 1;
+		}
+	}
+
+	private static class Assertion extends Node {
+		final int op;
+
+		Assertion(int op) {
+			this.op = op;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			builder.emit(op, 0, 0);
+		}
+
+		@Override
+		Node reverse() {
+			return new Assertion((op == BOL) ? EOL : BOL);
+		}
+
+		@Override
+		int minLength() {
+			return 0;
+		}
+
+		@Override
+		int maxLength() {
+			return 0;
+		}
+	}
+
+	private static class Sequence extends Node {
+		final List<Node> nodes;
+
+		Sequence(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			for (Node node : nodes) {
+				node.emit(builder);
+			}
+		}
+
+		@Override
+		Node reverse() {
+			List<Node> reversed = new ArrayList<>(nodes.size());
+			for (int i = nodes.size() - 1; i >= 0; i--) {
+				reversed.add(nodes.get(i).reverse());
+			}
+			return new Sequence(reversed);
+		}
+
+		@Override
+		int minLength() {
+			long length = 0;
+			for (Node node : nodes) {
+				length += node.minLength();
+			}
+			return (int)Math.min(length, Integer.MAX_VALUE);
+		}
+
+		@Override
+		int maxLength() {
+			long length = 0;
+			for (Node node : nodes) {
+				int max = node.maxLength();
+				if (max < 0) {
+					return -1;
+				}
+				length += max;
+			}
+			return (length > Integer.MAX_VALUE) ? -1 : (int)length;
+		}
+
+		@Override
+		int lookahead() {
+			int max = 0;
+			for (Node node : nodes) {
+				max = max(max, node.lookahead());
+			}
+			return max;
+		}
+
+		@Override
+		int lookbehind() {
+			int max = 0;
+			for (Node node : nodes) {
+				max = max(max, node.lookbehind());
+			}
+			return max;
+		}
+	}
+
+	private static class Alternation extends Node {
+		final List<Node> nodes;
+
+		Alternation(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			// SPLIT L1, next; L1: a; JMP end; next: SPLIT L2, next2; ...
+			int[] jumps = new int[nodes.size() - 1];
+			for (int i = 0; i < nodes.size() - 1; i++) {
+				int split = builder.emit(SPLIT, builder.size + 1, 0);
+				nodes.get(i).emit(builder);
+				jumps[i] = builder.emit(JMP, 0, 0);
+				builder.args2[split] = builder.size;
+			}
+			nodes.get(nodes.size() - 1).emit(builder);
+
+			for (int jump : jumps) {
+				builder.args[jump] = builder.size;
+			}
+		}
+
+		@Override
+		Node reverse() {
+			List<Node> reversed = new ArrayList<>(nodes.size());
+			for (Node node : nodes) {
+				reversed.add(node.reverse());
+			}
+			return new Alternation(reversed);
+		}
+
+		@Override
+		int minLength() {
+			int min = Integer.MAX_VALUE;
+			for (Node node : nodes) {
+				min = Math.min(min, node.minLength());
+			}
+			return min;
+		}
+
+		@Override
+		int maxLength() {
+			int max = 0;
+			for (Node node : nodes) {
+				int length = node.maxLength();
+				if (length < 0) {
+					return -1;
+				}
+				max = Math.max(max, length);
+			}
+			return max;
+		}
+		@Override
+		int lookahead() {
+			int max = 0;
+			for (Node node : nodes) {
+				max = max(max, node.lookahead());
+			}
+			return max;
+		}
+
+		@Override
+		int lookbehind() {
+			int max = 0;
+			for (Node node : nodes) {
+				max = max(max, node.lookbehind());
+			}
+			return max;
+		}
+	}
+
+	private static class Group extends Node {
+		final Node node;
+		final int index;
+
+		Group(Node node, int index) {
+			this.node = node;
+			this.index = index;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			builder.emit(SAVE, 2*index, 0);
+			node.emit(builder);
+			builder.emit(SAVE, 2*index + 1, 0);
+		}
+
+		@Override
+		Node reverse() {
+			return new Group(node.reverse(), index);
+		}
+
+		@Override
+		int minLength() {
+			return node.minLength();
+		}
+
+		@Override
+		int maxLength() {
+			return node.maxLength();
+		}
+		@Override
+		int lookahead() {
+			return node.lookahead();
+		}
+
+		@Override
+		int lookbehind() {
+			return node.lookbehind();
+		}
+	}
+
+	private static class Repetition extends Node {
+		final Node node;
+		final int min;
+		/** -1: unbounded */
+		final int max;
+		final boolean greedy;
+
+		Repetition(Node node, int min, int max, boolean greedy) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+			this.greedy = greedy;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			for (int i = 0; i < min; i++) {
+				node.emit(builder);
+			}
+
+			if (max < 0) {
+				// L1: SPLIT L2, L3; L2: node; JMP L1; L3:
+				int split = builder.emit(SPLIT, 0, 0);
+				int body = builder.size;
+				node.emit(builder);
+				builder.emit(JMP, split, 0);
+				setSplit(builder, split, body, builder.size);
+			} else {
+				// nested optionals: (node(node)?)?
+				int[] splits = new int[max - min];
+				for (int i = 0; i < max - min; i++) {
+					splits[i] = builder.emit(SPLIT, 0, 0);
+					node.emit(builder);
+				}
+				for (int i = 0; i < splits.length; i++) {
+					setSplit(builder, splits[i], splits[i] + 1, builder.size);
+				}
+			}
+		}
+
+		@Override
+		Node reverse() {
+			return new Repetition(node.reverse(), min, max, greedy);
+		}
+
+		private void setSplit(Builder builder, int split, int body, int exit) {
+			builder.args[split] = greedy ? body : exit;
+			builder.args2[split] = greedy ? exit : body;
+		}
+
+		@Override
+		int minLength() {
+			return (int)Math.min((long)min * node.minLength(), Integer.MAX_VALUE);
+		}
+
+		@Override
+		int maxLength() {
+			int length = node.maxLength();
+			if (length == 0 || max == 0) {
+				return 0;
+			}
+			if (length < 0 || max < 0) {
+				return -1;
+			}
+			long total = (long)max * length;
+			return (total > Integer.MAX_VALUE) ? -1 : (int)total;
+		}
+
+		@Override
+		int lookahead() {
+			return node.lookahead();
+		}
+
+		@Override
+		int lookbehind() {
+			return node.lookbehind();
+		}
+	}
+
+	/**
+	 * [^{0}{1}]: an element matching none of the predicates.
+	 */
+	private static class NegatedClass extends Node {
+		final int[] indices;
+
+		NegatedClass(int[] indices) {
+			this.indices = indices;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			for (int index : indices) {
+				builder.emit(NOT, index, 0);
+			}
+			builder.emit(ANY, 0, 0);
+		}
+
+		@Override
+		Node reverse() {
+			return this;
+		}
+
+		@Override
+		int minLength() {
+			return 1;
+		}
+
+		@Override
+		int maxLength() {
+			return 1;
+		}
+	}
+
+	private static class Lookaround extends Node {
+		final Node node;
+		final boolean behind;
+		final boolean negative;
+
+		/** the program run at the current position (created by emit) */
+		private ListPattern program = null;
+
+		Lookaround(Node node, boolean behind, boolean negative) {
+			this.node = node;
+			this.behind = behind;
+			this.negative = negative;
+		}
+
+		@Override
+		void emit(Builder builder) {
+			if (program == null) {
+				program = new ListPattern(
+					"lookaround",
+					behind ? node.reverse() : node,
+					0,
+					Collections.<String,Integer>emptyMap(),
+					new BitSet()
+				);
+			}
+
+			builder.emit(
+				LOOK,
+				builder.lookarounds.size(),
+				(behind ? LOOK_BEHIND : 0) | (negative ? LOOK_NEGATIVE : 0)
+			);
+			builder.lookarounds.add(program);
+		}
+
+		@Override
+		Node reverse() {
+			// looking ahead on the list is looking behind on the reversed list
+			return new Lookaround(node.reverse(), !behind, negative);
+		}
+
+		@Override
+		int minLength() {
+			return 0;
+		}
+
+		@Override
+		int maxLength() {
+			return 0;
+		}
+
+		@Override
+		int lookahead() {
+			return behind ? node.lookahead() : add(node.maxLength(), node.lookahead());
+		}
+
+		@Override
+		int lookbehind() {
+			return behind ? add(node.maxLength(), node.lookbehind()) : node.lookbehind();
+		}
+	}
+
+	private static class Parser {
+		/** placeholder tokens are stored as -1-index */
+		private final int[] tokens;
+		private final String pattern;
+		private int pos = 0;
+
+		int groupCount = 0;
+		final Map<String,Integer> groupNames = new LinkedHashMap<>();
+		final BitSet predicates = new BitSet();
+
+		Parser(String pattern) {
+			this.pattern = pattern;
+			this.tokens = tokenize(pattern);
+		}
+
+		/**
+		 * Resolve MessageFormat syntax: quotes and placeholders.
+		 */
+		private static int[] tokenize(String pattern) {
+			int[] tokens = new int[pattern.length()];
+			int size = 0;
+			boolean quoted = false;
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if (c == '\'') {
+					if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+						tokens[size++] = c;
+						i++;
+					} else {
+						quoted = !quoted;
+					}
+				} else if (c == '{' && !quoted) {
+					int end = pattern.indexOf('}', i);
+					if (end < 0) {
+						throw new IllegalArgumentException("Unmatched braces in the pattern: " + pattern);
+					}
+					int index;
+					try {
+						index = Integer.parseInt(pattern.substring(i + 1, end).trim());
+					}
+					catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Can't parse argument number: " + pattern.substring(i + 1, end));
+					}
+					if (index < 0) {
+						throw new IllegalArgumentException("Negative argument number: " + index);
+					}
+					tokens[size++] = -1 - index;
+					i = end;
+				} else {
+					tokens[size++] = c;
+				}
+			}
+
+			return Arrays.copyOf(tokens, size);
+		}
+
+		Node parse() {
+			Node node = parseAlternation();
+			if (pos < tokens.length) {
+				throw error("Unmatched closing ')'");
+			}
+			return node;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " near token " + pos + " in pattern: " + pattern);
+		}
+
+		private boolean peek(char c) {
+			return pos < tokens.length && tokens[pos] == c;
+		}
+
+		private Node parseAlternation() {
+			List<Node> nodes = new ArrayList<>();
+			nodes.add(parseSequence());
+			while (peek('|')) {
+				pos++;
+				nodes.add(parseSequence());
+			}
+
+			return (nodes.size() == 1) ? nodes.get(0) : new Alternation(nodes);
+		}
+
+		private Node parseSequence() {
+			List<Node> nodes = new ArrayList<>();
+			while (pos < tokens.length && !peek('|') && !peek(')')) {
+				Node atom = parseAtom();
+				nodes.add(parseQuantifier(atom));
+			}
+
+			return (nodes.size() == 1) ? nodes.get(0) : new Sequence(nodes);
+		}
+
+		private Node parseAtom() {
+			int token = tokens[pos++];
+			if (token < 0) {
+				int index = -1 - token;
+				predicates.set(index);
+				return new Predicate(index);
+			}
+
+			switch (token) {
+				case '.':
+					return new Any();
+				case '^':
+					return new Assertion(BOL);
+				case '$':
+					return new Assertion(EOL);
+				case '(':
+					return parseGroup();
+				case '[':
+					return parseClass();
+				case '*':
+				case '+':
+				case '?':
+					throw error("Dangling meta character '" + (char)token + "'");
+				default:
+					pos--;
+					throw error("Plain character '" + (char)token + "' (we're not matching strings here!)");
+			}
+		}
+
+		private Node parseGroup() {
+			int index = -1;
+			if (peek('?')) {
+				pos++;
+				if (peek('=') || peek('!')) {
+					return parseLookaround(false);
+				} else if (peek('<') && pos + 1 < tokens.length && (tokens[pos + 1] == '=' || tokens[pos + 1] == '!')) {
+					pos++;
+					return parseLookaround(true);
+				} else if (peek('<')) {
+					pos++;
+					String name = parseName();
+					if (groupNames.containsKey(name)) {
+						throw error("Named group <" + name + "> is already defined");
+					}
+					index = ++groupCount;
+					groupNames.put(name, index);
+				} else if (peek(':')) {
+					pos++;
+				} else {
+					throw error("Unsupported group type");
+				}
+			} else {
+				index = ++groupCount;
+			}
+
+			Node node = parseAlternation();
+			if (!peek(')')) {
+				throw error("Unclosed group");
+			}
+			pos++;
+
+			return (index < 0) ? node : new Group(node, index);
+		}
+
+		/**
+		 * Parse the rest of a lookaround group, starting at '=' or '!'.
+		 */
+		private Node parseLookaround(boolean behind) {
+			boolean negative = peek('!');
+			pos++;
+
+			Node node = parseAlternation();
+			if (!peek(')')) {
+				throw error("Unclosed group");
+			}
+			if (node.maxLength() < 0) {
+				throw error("Lookaround without a bounded length");
+			}
+			pos++;
+
+			return new Lookaround(node, behind, negative);
+		}
+
+		/**
+		 * Parse an element class: [{0}{1}] or [^{0}{1}]
+		 */
+		private Node parseClass() {
+			boolean negated = peek('^');
+			if (negated) {
+				pos++;
+			}
+
+			List<Integer> indices = new ArrayList<>();
+			while (pos < tokens.length && tokens[pos] < 0) {
+				int index = -1 - tokens[pos++];
+				predicates.set(index);
+				indices.add(index);
+			}
+			if (!peek(']')) {
+				throw error(pos < tokens.length ? "Only predicates are allowed in classes" : "Unclosed class");
+			}
+			if (indices.isEmpty()) {
+				throw error("Empty class");
+			}
+			pos++;
+
+			if (negated) {
+				int[] array = new int[indices.size()];
+				for (int i = 0; i < array.length; i++) {
+					array[i] = indices.get(i);
+				}
+				return new NegatedClass(array);
+			}
+
+			if (indices.size() == 1) {
+				return new Predicate(indices.get(0));
+			}
+			List<Node> nodes = new ArrayList<>(indices.size());
+			for (int index : indices) {
+				nodes.add(new Predicate(index));
+			}
+			return new Alternation(nodes);
+		}
+
+		private Node parseQuantifier(Node atom) {
+			if (pos >= tokens.length) {
+				return atom;
+			}
+
+			int min;
+			int max;
+			int token = tokens[pos];
+			if (token == '*') {
+				min = 0;
+				max = -1;
+				pos++;
+			} else if (token == '+') {
+				min = 1;
+				max = -1;
+				pos++;
+			} else if (token == '?') {
+				min = 0;
+				max = 1;
+				pos++;
+			} else if (token == '{') {
+				pos++;
+				min = parseNumber();
+				max = min;
+				if (peek(',')) {
+					pos++;
+					max = peek('}') ? -1 : parseNumber();
+				}
+				if (!peek('}')) {
+					throw error("Unclosed counted closure");
+				}
+				pos++;
+				if (max >= 0 && max < min) {
+					throw error("Illegal repetition range");
+				}
+			} else {
+				return atom;
+			}
+
+			boolean greedy = true;
+			if (peek('?')) {
+				greedy = false;
+				pos++;
+			} else if (peek('+')) {
+				throw error("Possessive quantifiers are not supported");
+			}
+
+			return new Repetition(atom, min, max, greedy);
+		}
+
+		/**
+		 * Parse a group name and the closing '>'
+		 * (same rules as java.util.regex: a letter, then letters and digits).
+		 */
+		private String parseName() {
+			StringBuilder name = new StringBuilder();
+			while (
+				pos < tokens.length &&
+				(
+					(tokens[pos] >= 'a' && tokens[pos] <= 'z') ||
+					(tokens[pos] >= 'A' && tokens[pos] <= 'Z') ||
+					(tokens[pos] >= '0' && tokens[pos] <= '9' && name.length() > 0)
+				)
+			) {
+				name.append((char)tokens[pos++]);
+			}
+
+			if (name.length() == 0 || !peek('>')) {
+				throw error("Invalid group name");
+			}
+			pos++;
+
+			return name.toString();
+		}
+
+		private int parseNumber() {
+			int start = pos;
+			long number = 0;
+			while (pos < tokens.length && tokens[pos] >= '0' && tokens[pos] <= '9') {
+				number = 10*number + (tokens[pos] - '0');
+				if (number > Integer.MAX_VALUE) {
+					throw error("Number too large");
+				}
+				pos++;
+			}
+			if (pos == start) {
+				throw error("Number expected");
+			}
+			return (int)number;
+		}
+	}
+}
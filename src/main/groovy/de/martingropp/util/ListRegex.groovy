@@ -19,11 +19,6 @@ package de.martingropp.util;
 
 import groovy.transform.TypeChecked
 
-import java.text.MessageFormat
-import java.util.Map.Entry
-import java.util.regex.Matcher
-import java.util.regex.Pattern
-
 /**
  * A (not very elegant) way of bringing regular expressions to lists.
  * It matches list elements using closures and maps list elements to characters
@@ -49,8 +44,72 @@ import java.util.regex.Pattern
  */
 @TypeChecked
 public class ListRegex {
-	private static final String letters = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopqrstuvwxyz_";
-	
+	/**
+	 * Compile a regular expression for repeated use with the same closures.
+	 * 
+	 * Example:
+	 * CompiledListRegex regex = compile("{0}.{1}+", [ { it == 2 }, { it % 2 == 0 } ])
+	 * regex.find([ 1, 2, 3, 4, 5, 6 ])
+	 * 
+	 * @param pattern
+	 *   The regular expression (see find).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @return
+	 *   the compiled regular expression
+	 */
+	public static <T> CompiledListRegex<T> compile(String pattern, List<Closure> closures) {
+		return new CompiledListRegex<T>(pattern, closures);
+	}
+
+	/**
+	 * Compile a regular expression to an automaton working directly on
+	 * the closure results (no string encoding, no limit on the number of
+	 * closure match combinations, no backtracking: matching always takes
+	 * linear time).
+	 * See NativeListRegex for the supported syntax.
+	 *
+	 * @param pattern
+	 *   The regular expression (see find).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @return
+	 *   the compiled regular expression
+	 */
+	public static <T> NativeListRegex<T> compileNative(String pattern, List<Closure> closures) {
+		return new NativeListRegex<T>(pattern, closures);
+	}
+
+	/**
+	 * Compile many regular expressions sharing the same closures, to apply
+	 * them to lists together (see NativeListRegexSet).
+	 *
+	 * @param patterns
+	 *   The regular expressions (see compileNative).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @return
+	 *   the compiled regular expressions
+	 */
+	public static <T> NativeListRegexSet<T> compileSet(List<String> patterns, List<Closure> closures) {
+		return new NativeListRegexSet<T>(patterns, closures);
+	}
+
+	/**
+	 * Call closures for all elements of a list once, to run many
+	 * native patterns on it (see PreparedList).
+	 *
+	 * @param list
+	 *   The list to run regexes on
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @return
+	 *   the list with the closure results
+	 */
+	public static <T> PreparedList<T> prepare(List<T> list, List<Closure> closures) {
+		return new PreparedList<T>(list, closures);
+	}
+
 	/**
 	 * Find the first match of a regular expression in a list.
 	 * 
@@ -76,39 +135,25 @@ public class ListRegex {
 		List<T> list,
 		List<? extends Collection<T>> groups
 	) {
-		List<String> closurePatterns = new ArrayList<>();
-		String prepared = prepare(closures, list, closurePatterns);
-		
-		Pattern compiledPattern = Pattern.compile(
-			MessageFormat.format(
-				pattern,
-				closurePatterns.toArray()
-			)
-		);
-		
-		Matcher matcher = compiledPattern.matcher(prepared);
-		
-		if (matcher.find()) {
-			if (groups != null) {
-				groups.clear();
-				for (int i = 0; i <= matcher.groupCount(); i++) {
-					if (matcher.start(i) < 0 || matcher.end(i) < 0) {
-						groups.add(null);
-						continue;
-					}
-					groups.add(list.subList(matcher.start(i), matcher.end(i)));
-				}
-				
-				// We can't handle named groups because Java's regex API does not
-				// give us the positions of named groups.
-			}
-			
-			return list.subList(matcher.start(), matcher.end());
-		}
-		
-		return null;
+		return new CompiledListRegex<T>(pattern, closures).find(list, groups);
 	}
 	
+	/**
+	 * Like find, but also returns the contents of named groups "(?<name>...)".
+	 *
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups, may be null
+	 */
+	public static <T> Collection<T> find(
+		String pattern,
+		List<Closure> closures,
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		return new CompiledListRegex<T>(pattern, closures).find(list, groups, namedGroups);
+	}
+
 	public static <T> Collection<T> find(String pattern, List<Closure> closures, List<T> list) {
 		return find(pattern, closures, list, null);
 	}
@@ -139,43 +184,25 @@ public class ListRegex {
 		List<T> list,
 		List<? extends List<? extends Collection<T>>> groups
 	) {
-		List<String> closurePatterns = new ArrayList<>();
-		String prepared = prepare(closures, list, closurePatterns);
-		
-		Pattern compiledPattern = Pattern.compile(
-			MessageFormat.format(
-				pattern,
-				closurePatterns.toArray()
-			)
-		);
-		
-		Matcher matcher = compiledPattern.matcher(prepared);
-		
-		List<? extends Collection<T>> result = new ArrayList<>();
-		if (groups != null) {
-			groups.clear();
-		}
-		
-		while (matcher.find()) {
-			result.add(list.subList(matcher.start(), matcher.end()));
-			
-			if (groups != null) {
-				List<? extends Collection<T>> matchGroup = new ArrayList<>(matcher.groupCount()+1);
-				for (int i = 0; i <= matcher.groupCount(); i++) {
-					if (matcher.start(i) < 0 || matcher.end(i) < 0) {
-						matchGroup.add(null);
-						continue;
-					}
-					matchGroup.add(list.subList(matcher.start(i), matcher.end(i)));
-				}
-
-				groups.add(matchGroup);
-			}
-		}
-		
-		return result;
+		return new CompiledListRegex<T>(pattern, closures).findAll(list, groups);
 	}
 	
+	/**
+	 * Like findAll, but also returns the contents of named groups "(?<name>...)".
+	 *
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups (one map per match), may be null
+	 */
+	public static <T> Collection<? extends Collection<T>> findAll(
+		String pattern,
+		List<Closure> closures,
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups,
+		List<? extends Map<String,Collection<T>>> namedGroups
+	) {
+		return new CompiledListRegex<T>(pattern, closures).findAll(list, groups, namedGroups);
+	}
+
 	public static <T> Collection<? extends Collection<T>> findAll(
 		String pattern,
 		List<Closure> closures,
@@ -184,6 +211,40 @@ public class ListRegex {
 		return findAll(pattern, closures, list, null);
 	}
 	
+	/**
+	 * Check whether a regular expression matches anywhere in a list
+	 * (cheaper than find, nothing is extracted).
+	 *
+	 * @param pattern
+	 *   The regular expression (see find).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   true iff find would find a match
+	 */
+	public static <T> boolean containsMatch(String pattern, List<Closure> closures, List<T> list) {
+		return new CompiledListRegex<T>(pattern, closures).containsMatch(list);
+	}
+
+	/**
+	 * Count the matches of a regular expression in a list
+	 * (cheaper than findAll, nothing is extracted).
+	 *
+	 * @param pattern
+	 *   The regular expression (see find).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   the number of matches findAll would return
+	 */
+	public static <T> int count(String pattern, List<Closure> closures, List<T> list) {
+		return new CompiledListRegex<T>(pattern, closures).count(list);
+	}
+
 	/**
 	 * Try to match an entire list with a  regular expression;
 	 *
@@ -210,39 +271,25 @@ public class ListRegex {
 		List<T> list,
 		List<? extends Collection<T>> groups
 	) {
-		List<String> closurePatterns = new ArrayList<>();
-		String prepared = prepare(closures, list, closurePatterns);
-		
-		Pattern regexPattern = Pattern.compile(
-			MessageFormat.format(
-				pattern,
-				closurePatterns.toArray()
-			)
-		);
-		
-		Matcher matcher = regexPattern.matcher(prepared);
-		
-		if (matcher.matches()) {
-			if (groups != null) {
-				groups.clear();
-				for (int i = 0; i <= matcher.groupCount(); i++) {
-					if (matcher.start(i) < 0 || matcher.end(i) < 0) {
-						groups.add(null);
-						continue;
-					}
-					groups.add(i, list.subList(matcher.start(i), matcher.end(i)));
-				}
-				
-				// We can't handle named groups because Java's regex API does not
-				// give us the positions of named groups.
-			}
-			
-			return true;
-		}
-		
-		return false;
+		return new CompiledListRegex<T>(pattern, closures).matches(list, groups);
 	}
 	
+	/**
+	 * Like matches, but also returns the contents of named groups "(?<name>...)".
+	 *
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups, may be null
+	 */
+	public static <T> boolean matches(
+		String pattern,
+		List<Closure> closures,
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		return new CompiledListRegex<T>(pattern, closures).matches(list, groups, namedGroups);
+	}
+
 	public static <T> boolean matches(
 		String pattern,
 		List<Closure> closures,
@@ -251,87 +298,56 @@ public class ListRegex {
 		return matches(pattern, closures, list, null);
 	}
 	
-	private static <T> String prepare(List<Closure> closures, List<T> list, List<String> closurePatterns) {
-		String[] matching = new String[list.size()];
-		
-		// Go through all list items and check which closures match.
-		int ci = 0;
-		for (Closure closure : closures) {
-			char letter = letters.charAt(ci);
-			
-			int ti = 0;
-			for (T t : list) {
-				if (closure(t)) {
-					if (matching[ti] == null) {
-						matching[ti] = Character.toString(letter);
-					}  else {
-						matching[ti] += letter;
-					}
-				}
-				
-				ti++;
-			}
-			
-			ci++;
-		}
-		
-		// Now assign a character for each unique combination
-		// of closure matches
-		// Example:
-		// closures 1 and 3 match => a
-		// closure 1 matches      => b
-		// closure 2 matches      => c
-		// closure 3 matches      => d
-		// ...
-		Map<String,Character> map = new HashMap<>();
-		int mi = 0;
-		StringBuilder msb = new StringBuilder();
-		for (String m : matching) {
-			if (m == null) {
-				msb.append(' ');
-			} else if (!map.containsKey(m)) {
-				if (mi >= letters.length()) {
-					throw new RuntimeException("We're out of characters! Sorry, the expression is too complex for our simple approach.");
-				}
-			
-				map.put(m, letters[mi].charAt(0));
-				msb.append(letters[mi]);
-				mi++;
-			} else {
-				msb.append(map.get(m));
-			}
-		}
-		
-		// Find character groups for the closures that match
-		// when they have to in the converted input.
-		// In the example above:
-		// closure 1: [ab]
-		// closure 2: [c]
-		// closure 3: [ad]
-		closurePatterns.clear();
-		for (int i = 0; i < closures.size(); i++) { 
-			char letter = letters.charAt(i);
-			
-			StringBuilder sb = new StringBuilder("[");
-			
-			for (Entry<String,Character> entry : map.entrySet()) { 
-				if (entry.getKey().indexOf((int)letter) >= 0) {
-					sb.append(entry.getValue());
-				}
-			}
-			
-			sb.append(']');
-			
-			if (sb.length() > 2) {
-				closurePatterns.add(sb.toString());
-			} else {
-				closurePatterns.add("");
-			}
-		}
-		
-		return msb.toString();
+	/**
+	 * Replace all matches of a regular expression in a list.
+	 *
+	 * Example:
+	 * replaceAll("{0}{1}", [ { it == 1 }, { it == 2 } ], [ 1, 2, 3, 1, 2 ], { [ 12 ] })
+	 * => [ 12, 3, 12 ]
+	 *
+	 * @param pattern
+	 *   The regular expression (see find).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @param list
+	 *   The list to run the regex on
+	 * @param replacer
+	 *   Called for each match (and its capturing groups if the closure
+	 *   takes two parameters), returns the collection of elements to put
+	 *   in place of the match (or null to remove it).
+	 * @return
+	 *   a new list with the matches replaced
+	 */
+	public static <T> List<T> replaceAll(
+		String pattern,
+		List<Closure> closures,
+		List<T> list,
+		Closure replacer
+	) {
+		return new CompiledListRegex<T>(pattern, closures).replaceAll(list, replacer);
 	}
-	
+
+	/**
+	 * Split a list around the matches of a regular expression.
+	 *
+	 * Example:
+	 * split("{0}", [ { it == 0 } ], [ 1, 0, 2, 3, 0 ])
+	 * => [ [ 1 ], [ 2, 3 ], [] ]
+	 *
+	 * @param pattern
+	 *   The regular expression (see find).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @param list
+	 *   The list to split
+	 * @return
+	 *   the parts of the list between the matches
+	 *   (see CompiledListRegex.split)
+	 */
+	public static <T> List<List<T>> split(String pattern, List<Closure> closures, List<T> list) {
+		return new CompiledListRegex<T>(pattern, closures).split(list);
+	}
+
 	public static void main(String[] args) {
 		List<Integer> list = [ 0, 1, 2, 3, 4 ];
 		List<Closure> closures = [
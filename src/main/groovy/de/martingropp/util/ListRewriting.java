@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import groovy.lang.Closure;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * replaceAll and split for ListRegex, built in one pass over the list
+ * while the matches are found (see ListMatchVisitor).
+ *
+ * @author mgropp
+ */
+final class ListRewriting {
+	private ListRewriting() {
+	}
+
+	/**
+	 * Copies a list sequentially, skipping parts of it.
+	 */
+	private static class Copier<T> {
+		private final ListIterator<T> iterator;
+
+		Copier(List<T> list) {
+			this.iterator = list.listIterator();
+		}
+
+		/** copy the elements up to end (exclusive) */
+		void copy(int end, List<T> target) {
+			while (iterator.nextIndex() < end) {
+				target.add(iterator.next());
+			}
+		}
+
+		/** skip the elements up to end (exclusive) */
+		void skip(int end) {
+			while (iterator.nextIndex() < end) {
+				iterator.next();
+			}
+		}
+	}
+
+	/**
+	 * Builds a copy of the list with all matches replaced by the result of
+	 * the replacer closure.
+	 */
+	static class Replacer<T> implements ListMatchVisitor {
+		private final List<T> list;
+		private final Closure replacer;
+		private final boolean groups;
+		private final Copier<T> copier;
+		private final List<T> result;
+
+		Replacer(List<T> list, Closure replacer) {
+			this.list = list;
+			this.replacer = replacer;
+			this.groups = replacer.getMaximumNumberOfParameters() >= 2;
+			this.copier = new Copier<T>(list);
+			this.result = new ArrayList<>(list.size());
+		}
+
+		/**
+		 * @return
+		 *   true if the replacer wants the groups of each match
+		 */
+		boolean wantsGroups() {
+			return groups;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void visit(int[] offsets) {
+			copier.copy(offsets[0], result);
+			copier.skip(offsets[1]);
+
+			List<T> match = list.subList(offsets[0], offsets[1]);
+			Object replacement;
+			if (groups) {
+				List<List<T>> matchGroups = new ArrayList<>(offsets.length / 2);
+				for (int i = 0; i < offsets.length; i += 2) {
+					matchGroups.add((offsets[i] < 0) ? null : list.subList(offsets[i], offsets[i + 1]));
+				}
+				replacement = replacer.call(match, matchGroups);
+			} else {
+				replacement = replacer.call(match);
+			}
+
+			if (replacement instanceof Collection) {
+				result.addAll((Collection<T>)replacement);
+			} else if (replacement != null) {
+				throw new IllegalArgumentException(
+					"The replacer has to return a collection of elements (or null), not " + replacement.getClass().getName() + "."
+				);
+			}
+		}
+
+		List<T> finish() {
+			copier.copy(list.size(), result);
+			return result;
+		}
+	}
+
+	/**
+	 * Collects the parts of the list between the matches.
+	 */
+	static class Splitter<T> implements ListMatchVisitor {
+		private final List<T> list;
+		private final Copier<T> copier;
+		private final List<List<T>> result = new ArrayList<>();
+		/** end of the last match */
+		private int start = 0;
+
+		Splitter(List<T> list) {
+			this.list = list;
+			this.copier = new Copier<T>(list);
+		}
+
+		@Override
+		public void visit(int[] offsets) {
+			if (offsets[1] == 0) {
+				// no leading empty part for an empty match at the beginning
+				return;
+			}
+
+			List<T> part = new ArrayList<>(offsets[0] - start);
+			copier.copy(offsets[0], part);
+			result.add(part);
+
+			copier.skip(offsets[1]);
+			start = offsets[1];
+		}
+
+		List<List<T>> finish() {
+			List<T> part = new ArrayList<>(list.size() - start);
+			copier.copy(list.size(), part);
+			result.add(part);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,781 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Runs a ListPattern program on a list (Pike VM).
+ *
+ * All threads are run in lockstep, one list element at a time,
+ * so the running time is linear in the length of the list.
+ * Lookarounds run a search of their own, but their length is bounded
+ * (see ListPattern), so that only adds a constant factor.
+ * Threads are kept in priority order, which gives the same matches
+ * as a backtracking engine (leftmost, then first alternative).
+ *
+ * Not thread-safe, use one ListVM per thread.
+ *
+ * @author mgropp
+ */
+final class ListVM {
+	/**
+	 * Access to the predicate results of the list elements.
+	 */
+	interface Input {
+		/**
+		 * @return
+		 *   true iff the predicate matches the element at index
+		 */
+		boolean test(int index, int predicate);
+	}
+
+	/**
+	 * Set of threads, ordered by priority, at most one per instruction.
+	 */
+	private static final class ThreadList {
+		final int[] sparse;
+		final int[] dense;
+		/** capture slots, one row per entry in dense */
+		final int[] caps;
+		int size = 0;
+		/** number of entries waiting for an element or at MATCH */
+		int threads = 0;
+
+		ThreadList(int instructions, int slots) {
+			sparse = new int[instructions];
+			dense = new int[instructions];
+			caps = new int[instructions * slots];
+		}
+
+		boolean contains(int pc) {
+			int i = sparse[pc];
+			return i < size && dense[i] == pc;
+		}
+
+		int add(int pc) {
+			sparse[pc] = size;
+			dense[size] = pc;
+			return size++;
+		}
+
+		void clear() {
+			size = 0;
+			threads = 0;
+		}
+
+		/**
+		 * Remove the entries for instructions lo to hi - 1,
+		 * none of which may be a thread.
+		 */
+		void remove(int lo, int hi, int slots) {
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				int pc = dense[i];
+				if (pc >= lo && pc < hi) {
+					continue;
+				}
+				sparse[pc] = n;
+				dense[n] = pc;
+				System.arraycopy(caps, i*slots, caps, n*slots, slots);
+				n++;
+			}
+			size = n;
+		}
+	}
+
+	/**
+	 * The state of the patterns of a union in searchAllSet.
+	 */
+	private static final class SetScan {
+		/** where the search of each pattern started */
+		final int[] from;
+		/** the pending match of each pattern (see pending) */
+		final int[] matchCaps;
+		/** the pattern has a match, but threads with higher priority are still running */
+		final boolean[] pending;
+		/** lower priority threads of the pattern are cut off in this step */
+		final boolean[] cut;
+		/** running threads of each pattern */
+		final int[] threads;
+		/** capture slots of the matches found so far, per pattern */
+		final int[][] found;
+		final int[] count;
+
+		SetScan(int patterns, int slots) {
+			from = new int[patterns];
+			matchCaps = new int[patterns * slots];
+			pending = new boolean[patterns];
+			cut = new boolean[patterns];
+			threads = new int[patterns];
+			found = new int[patterns][];
+			count = new int[patterns];
+			for (int i = 0; i < patterns; i++) {
+				found[i] = new int[4 * slots];
+			}
+		}
+
+		void add(int pattern, int[] caps, int offset, int slots) {
+			if (count[pattern] == found[pattern].length / slots) {
+				found[pattern] = Arrays.copyOf(found[pattern], 2 * found[pattern].length);
+			}
+			System.arraycopy(caps, offset, found[pattern], count[pattern] * slots, slots);
+			count[pattern]++;
+		}
+	}
+
+	private final int[] ops;
+	private final int[] args;
+	private final int[] args2;
+
+	/** programs of the lookarounds, and their VMs (created when needed) */
+	private final ListPattern[] lookarounds;
+	private final ListVM[] lookaroundVMs;
+
+	/** the start of each pattern of a union (see ListPattern.union), null otherwise */
+	private final int[] entries;
+
+	/** the pattern each instruction belongs to (-1 if none), for unions */
+	private final int[] patternOf;
+
+	/** input of the lookbehinds (reused) */
+	private ReversedInput reversedInput = null;
+
+	/** number of capture slots tracked */
+	final int slots;
+
+	private ThreadList clist;
+	private ThreadList nlist;
+	private final int[] stack;
+	private final int[] caps;
+
+	/** the end of the input ($) */
+	int length;
+
+	/**
+	 * the beginning of the input (^), negative when the beginning has
+	 * been discarded (see rebase)
+	 */
+	long origin = 0L;
+
+	/** only accept matches ending at length */
+	boolean requireEnd = false;
+
+	/** search only finds matches starting at or before this position */
+	int maxStart = Integer.MAX_VALUE;
+
+	/** set when a match has been found, see matchCaps */
+	boolean matched = false;
+
+	/**
+	 * Capture slots of the match: start and end of the whole match,
+	 * then start and end of each group (-1 if the group did not
+	 * participate).
+	 */
+	final int[] matchCaps;
+
+	/**
+	 * @param groups
+	 *   track capturing groups (otherwise only the whole match)
+	 */
+	ListVM(ListPattern pattern, boolean groups) {
+		this.ops = pattern.ops;
+		this.args = pattern.args;
+		this.args2 = pattern.args2;
+		this.slots = pattern.slots(groups);
+		this.lookarounds = pattern.lookarounds;
+		this.lookaroundVMs = new ListVM[lookarounds.length];
+		this.entries = pattern.entries;
+
+		if (entries != null) {
+			patternOf = new int[ops.length];
+			Arrays.fill(patternOf, -1);
+			for (int i = 0; i < entries.length; i++) {
+				int end = (i + 1 < entries.length) ? entries[i + 1] : ops.length;
+				Arrays.fill(patternOf, entries[i], end, i);
+			}
+		} else {
+			patternOf = null;
+		}
+
+		clist = new ThreadList(ops.length, slots);
+		nlist = new ThreadList(ops.length, slots);
+		stack = new int[3*ops.length + 1];
+		caps = new int[slots];
+		matchCaps = new int[slots];
+	}
+
+	void clear() {
+		clist.clear();
+		nlist.clear();
+		matched = false;
+	}
+
+	boolean hasThreads() {
+		return clist.threads > 0;
+	}
+
+	/**
+	 * @return
+	 *   the earliest start position of all running threads
+	 *   (Integer.MAX_VALUE if there are none)
+	 */
+	int minStart() {
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < clist.size; i++) {
+			int op = ops[clist.dense[i]];
+			if (op == ListPattern.PRED || op == ListPattern.ANY || op == ListPattern.MATCH) {
+				int start = clist.caps[i*slots];
+				if (start >= 0 && start < min) {
+					min = start;
+				}
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Move all positions (threads, match, length, origin) by -delta,
+	 * e.g. when the beginning of the input has been discarded.
+	 */
+	void rebase(int delta) {
+		for (int i = 0; i < clist.size * slots; i++) {
+			if (clist.caps[i] >= 0) {
+				clist.caps[i] -= delta;
+			}
+		}
+		if (matched) {
+			for (int i = 0; i < slots; i++) {
+				if (matchCaps[i] >= 0) {
+					matchCaps[i] -= delta;
+				}
+			}
+		}
+		if (length != Integer.MAX_VALUE) {
+			length -= delta;
+		}
+		origin -= delta;
+	}
+
+	/**
+	 * Search for the first match starting at from or later
+	 * (or exactly at from if anchored), but not after maxStart.
+	 *
+	 * @return true iff a match was found, see matchCaps
+	 */
+	boolean search(Input input, int from, boolean anchored) {
+		clear();
+
+		for (int pos = from; pos <= length; pos++) {
+			if (!matched && pos <= maxStart && (!anchored || pos == from)) {
+				addStart(pos, input);
+			}
+
+			if (clist.threads == 0) {
+				if (matched || anchored || pos >= maxStart) {
+					break;
+				}
+				clist.clear();
+				continue;
+			}
+
+			step(pos, input);
+		}
+
+		return matched;
+	}
+
+	/**
+	 * Find all matches (like java.util.regex.Matcher.find in a loop).
+	 *
+	 * @return
+	 *   capture slots of all matches (slots per match)
+	 */
+	int[] searchAll(Input input) {
+		int[] result = new int[8 * slots];
+		int count = 0;
+
+		int from = 0;
+		while (from <= length && search(input, from, false)) {
+			if (count == result.length / slots) {
+				result = Arrays.copyOf(result, 2 * result.length);
+			}
+			System.arraycopy(matchCaps, 0, result, count * slots, slots);
+			count++;
+
+			from = next(matchCaps);
+		}
+
+		return Arrays.copyOf(result, count * slots);
+	}
+
+	/**
+	 * Like searchAll from from, but stop at position end, before starting
+	 * a new thread there, and leave the running search (threads, matched,
+	 * matchCaps) as it is.
+	 *
+	 * @param scan
+	 *   receives the matches completed before end (as pattern)
+	 * @return
+	 *   where the running search started
+	 */
+	private int searchAllUntil(Input input, int from, int end, SetScan scan, int pattern) {
+		clear();
+
+		int pos = from;
+		while (true) {
+			if (matched && clist.threads == 0) {
+				scan.add(pattern, matchCaps, 0, slots);
+				from = pos = next(matchCaps);
+				clear();
+			}
+
+			if (pos >= end) {
+				return from;
+			}
+
+			if (!matched) {
+				addStart(pos, input);
+			}
+			step(pos, input);
+			pos++;
+		}
+	}
+
+	/**
+	 * Find all matches and pass them to visitor (matchCaps, no copies).
+	 */
+	void searchAll(Input input, ListMatchVisitor visitor) {
+		int from = 0;
+		while (from <= length && search(input, from, false)) {
+			from = next(matchCaps);
+			visitor.visit(matchCaps);
+		}
+	}
+
+	/**
+	 * Find the earliest position at which any match ends
+	 * (threads are started at every position, nothing is cut off).
+	 *
+	 * @return
+	 *   the end of the match, or -1 if there is none
+	 */
+	int searchEarliestEnd(Input input) {
+		clear();
+		BitSet set = new BitSet(1);
+
+		for (int pos = 0; pos <= length; pos++) {
+			addStart(pos, input);
+			step(pos, input, set);
+			if (!set.isEmpty()) {
+				return pos;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Input in reverse order (index 0 is the last element).
+	 */
+	static final class ReversedInput implements Input {
+		private Input input;
+		private int last;
+
+		ReversedInput(Input input, int length) {
+			set(input, length);
+		}
+
+		ReversedInput set(Input input, int length) {
+			this.input = input;
+			this.last = length - 1;
+			return this;
+		}
+
+		@Override
+		public boolean test(int index, int predicate) {
+			return input.test(last - index, predicate);
+		}
+	}
+
+	/**
+	 * Run a union of patterns (see ListPattern.union) over the whole input.
+	 * Matches don't stop other threads, so all alternatives are tried
+	 * in a single scan.
+	 *
+	 * @param count
+	 *   number of patterns in the union
+	 * @return
+	 *   the indices of the patterns that match somewhere
+	 */
+	BitSet searchSet(Input input, int count) {
+		clear();
+		BitSet result = new BitSet(count);
+
+		for (int pos = 0; pos <= length; pos++) {
+			if (pos <= maxStart) {
+				addStart(pos, input);
+			}
+
+			if (clist.threads == 0) {
+				if (pos >= maxStart) {
+					break;
+				}
+				clist.clear();
+				continue;
+			}
+
+			step(pos, input, result);
+			if (result.cardinality() == count) {
+				break;
+			}
+		}
+
+		matched = false;
+		return result;
+	}
+
+	/**
+	 * Find all matches of each pattern of a union (see ListPattern.union)
+	 * in a single scan.
+	 *
+	 * The patterns are searched independently, each exactly like searchAll
+	 * would: a match cuts off only the lower priority threads of its own
+	 * pattern. When the match of a pattern is complete, its next search may
+	 * have to start before the current position; then only that pattern is
+	 * run on its own until it catches up with the scan.
+	 *
+	 * @param patterns
+	 *   the patterns of the union
+	 * @return
+	 *   the capture slots of all matches of each pattern (slots per match)
+	 */
+	int[][] searchAllSet(Input input, ListPattern[] patterns) {
+		clear();
+		SetScan scan = new SetScan(patterns.length, slots);
+		ListVM[] vms = new ListVM[patterns.length];
+
+		for (int pos = 0; pos <= length; pos++) {
+			Arrays.fill(scan.threads, 0);
+			for (int i = 0; i < clist.size; i++) {
+				int pc = clist.dense[i];
+				if (isThread(ops[pc])) {
+					scan.threads[patternOf[pc]]++;
+				}
+			}
+
+			for (int p = 0; p < patterns.length; p++) {
+				if (!scan.pending[p] || scan.threads[p] > 0) {
+					continue;
+				}
+
+				// the match is complete
+				scan.pending[p] = false;
+				scan.add(p, scan.matchCaps, p*slots, slots);
+				scan.from[p] = next(scan.matchCaps, p*slots);
+				if (scan.from[p] <= pos) {
+					catchUp(input, patterns, vms, scan, p, pos);
+				}
+			}
+
+			for (int p = 0; p < patterns.length; p++) {
+				if (!scan.pending[p] && scan.from[p] <= pos) {
+					Arrays.fill(caps, -1);
+					addThread(clist, entries[p], pos, caps, input);
+				}
+			}
+
+			step(pos, input, scan);
+		}
+
+		// complete the pending matches and search the rest of the input
+		int[][] result = new int[patterns.length][];
+		for (int p = 0; p < patterns.length; p++) {
+			if (scan.pending[p]) {
+				scan.add(p, scan.matchCaps, p*slots, slots);
+				scan.from[p] = next(scan.matchCaps, p*slots);
+				if (scan.from[p] <= length) {
+					catchUp(input, patterns, vms, scan, p, length + 1);
+				}
+			}
+			result[p] = Arrays.copyOf(scan.found[p], scan.count[p] * slots);
+		}
+
+		clear();
+		return result;
+	}
+
+	/**
+	 * Run pattern p of a union on its own from scan.from[p] to pos, then
+	 * continue with its threads in the union.
+	 */
+	private void catchUp(Input input, ListPattern[] patterns, ListVM[] vms, SetScan scan, int p, int pos) {
+		ListVM vm = vms[p];
+		if (vm == null) {
+			vm = vms[p] = new ListVM(patterns[p], false);
+		}
+		vm.length = length;
+		vm.origin = origin;
+
+		// The threads of p that are left were started by the last search.
+		int end = (p + 1 < entries.length) ? entries[p + 1] : ops.length;
+		clist.remove(entries[p], end, slots);
+
+		scan.from[p] = vm.searchAllUntil(input, scan.from[p], pos, scan, p);
+		scan.pending[p] = vm.matched;
+		System.arraycopy(vm.matchCaps, 0, scan.matchCaps, p*slots, slots);
+
+		ThreadList threads = vm.clist;
+		for (int i = 0; i < threads.size; i++) {
+			int pc = threads.dense[i] + entries[p];
+			if (!clist.contains(pc)) {
+				int index = clist.add(pc);
+				System.arraycopy(threads.caps, i*slots, clist.caps, index*slots, slots);
+				if (isThread(ops[pc])) {
+					clist.threads++;
+				}
+			}
+		}
+		vm.clear();
+	}
+
+	private static boolean isThread(int op) {
+		return op == ListPattern.PRED || op == ListPattern.ANY || op == ListPattern.MATCH;
+	}
+
+	/**
+	 * @return
+	 *   where findAll continues after a match
+	 *   (like java.util.regex.Matcher: don't find the same empty match again)
+	 */
+	static int next(int[] matchCaps) {
+		return next(matchCaps, 0);
+	}
+
+	private static int next(int[] matchCaps, int offset) {
+		int start = matchCaps[offset];
+		int end = matchCaps[offset + 1];
+		return (end == start) ? end + 1 : end;
+	}
+
+	/**
+	 * Start a new thread at pos, with lower priority than all
+	 * running threads.
+	 */
+	void addStart(int pos, Input input) {
+		Arrays.fill(caps, -1);
+		addThread(clist, 0, pos, caps, input);
+	}
+
+	/**
+	 * Run all threads on the element at pos.
+	 * Threads reaching MATCH set matched/matchCaps and stop all
+	 * threads with lower priority.
+	 */
+	void step(int pos, Input input) {
+		step(pos, input, (BitSet)null);
+	}
+
+	/**
+	 * Like step, for searchAllSet: threads reaching MATCH make the match
+	 * of their pattern pending and stop only the lower priority threads
+	 * of the same pattern.
+	 */
+	private void step(int pos, Input input, SetScan scan) {
+		ThreadList current = clist;
+		ThreadList next = nlist;
+		next.clear();
+
+		for (int i = 0; i < current.size; i++) {
+			int pc = current.dense[i];
+			int op = ops[pc];
+			if (op == ListPattern.PRED || op == ListPattern.ANY) {
+				if (scan.cut[patternOf[pc]]) {
+					continue;
+				}
+				if (pos < length && (op == ListPattern.ANY || input.test(pos, args[pc]))) {
+					System.arraycopy(current.caps, i*slots, caps, 0, slots);
+					addThread(next, pc + 1, pos + 1, caps, input);
+				}
+			} else if (op == ListPattern.MATCH) {
+				int p = args[pc];
+				if (scan.cut[p] || (requireEnd && pos != length)) {
+					continue;
+				}
+
+				System.arraycopy(current.caps, i*slots, scan.matchCaps, p*slots, slots);
+				scan.pending[p] = true;
+				scan.cut[p] = true;
+			}
+		}
+
+		Arrays.fill(scan.cut, false);
+		clist = next;
+		nlist = current;
+		current.clear();
+	}
+
+	/**
+	 * @param set
+	 *   if not null, threads reaching MATCH add their pattern index
+	 *   (see ListPattern.union) instead, and nothing is cut off
+	 */
+	private void step(int pos, Input input, BitSet set) {
+		ThreadList current = clist;
+		ThreadList next = nlist;
+		next.clear();
+
+		for (int i = 0; i < current.size; i++) {
+			int pc = current.dense[i];
+			int op = ops[pc];
+			if (op == ListPattern.PRED || op == ListPattern.ANY) {
+				if (pos < length && (op == ListPattern.ANY || input.test(pos, args[pc]))) {
+					System.arraycopy(current.caps, i*slots, caps, 0, slots);
+					addThread(next, pc + 1, pos + 1, caps, input);
+				}
+			} else if (op == ListPattern.MATCH) {
+				if (requireEnd && pos != length) {
+					continue;
+				}
+
+				if (set != null) {
+					set.set(args[pc]);
+					continue;
+				}
+
+				System.arraycopy(current.caps, i*slots, matchCaps, 0, slots);
+				matched = true;
+
+				// lower priority threads are cut off
+				break;
+			}
+		}
+
+		clist = next;
+		nlist = current;
+		current.clear();
+	}
+
+	/**
+	 * @return
+	 *   true iff lookaround index (see ListPattern.LOOK) holds at pos
+	 */
+	private boolean look(int index, int flags, int pos, Input input) {
+		ListVM vm = lookaroundVMs[index];
+		if (vm == null) {
+			vm = lookaroundVMs[index] = new ListVM(lookarounds[index], false);
+		}
+
+		boolean found;
+		if ((flags & ListPattern.LOOK_BEHIND) != 0) {
+			// The program is reversed, run it backwards from pos:
+			// reversed position r is position pos - r, so the beginning
+			// of the input (origin) is the end of the reversed input.
+			vm.length = (int)Math.min(pos - origin, Integer.MAX_VALUE);
+			vm.origin = (long)pos - length;
+			if (reversedInput == null) {
+				reversedInput = new ReversedInput(input, pos);
+			} else {
+				reversedInput.set(input, pos);
+			}
+			found = vm.search(reversedInput, 0, true);
+		} else {
+			vm.length = length;
+			vm.origin = origin;
+			found = vm.search(input, pos, true);
+		}
+
+		return found != ((flags & ListPattern.LOOK_NEGATIVE) != 0);
+	}
+
+	/**
+	 * Follow all non-consuming instructions from pc and add the
+	 * resulting threads to list, in priority order.
+	 */
+	private void addThread(ThreadList list, int pc0, int pos, int[] caps, Input input) {
+		// Explicit stack: pc >= 0 means "explore pc",
+		// -1-slot (followed by the old value) means "restore slot".
+		int sp = 0;
+		stack[sp++] = pc0;
+
+		while (sp > 0) {
+			int entry = stack[--sp];
+			if (entry < 0) {
+				caps[-1 - entry] = stack[--sp];
+				continue;
+			}
+
+			int pc = entry;
+			if (list.contains(pc)) {
+				continue;
+			}
+			int index = list.add(pc);
+
+			switch (ops[pc]) {
+				case ListPattern.JMP:
+					stack[sp++] = args[pc];
+					break;
+
+				case ListPattern.SPLIT:
+					stack[sp++] = args2[pc];
+					stack[sp++] = args[pc];
+					break;
+
+				case ListPattern.SAVE:
+					int slot = args[pc];
+					if (slot < slots) {
+						stack[sp++] = caps[slot];
+						stack[sp++] = -1 - slot;
+						caps[slot] = pos;
+					}
+					stack[sp++] = pc + 1;
+					break;
+
+				case ListPattern.BOL:
+					if (pos == origin) {
+						stack[sp++] = pc + 1;
+					}
+					break;
+
+				case ListPattern.EOL:
+					if (pos == length) {
+						stack[sp++] = pc + 1;
+					}
+					break;
+
+				case ListPattern.NOT:
+					if (pos < length && !input.test(pos, args[pc])) {
+						stack[sp++] = pc + 1;
+					}
+					break;
+
+				case ListPattern.LOOK:
+					if (look(args[pc], args2[pc], pos, input)) {
+						stack[sp++] = pc + 1;
+					}
+					break;
+
+				default:
+					// PRED, ANY, MATCH
+					System.arraycopy(caps, 0, list.caps, index*slots, slots);
+					list.threads++;
+			}
+		}
+	}
+}
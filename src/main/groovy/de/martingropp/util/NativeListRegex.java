@@ -0,0 +1,840 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import groovy.lang.Closure;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
+
+import org.codehaus.groovy.runtime.typehandling.DefaultTypeTransformation;
+
+/**
+ * Regular expressions on lists without the detour via strings.
+ *
+ * Patterns are written like for ListRegex ({0}, {1}, ... refer to the
+ * closures), but instead of mapping the list to a String for Java's
+ * regex engine, the pattern is compiled to an automaton that runs
+ * directly on the closure results of each list element.
+ * There is no limit on the number of different combinations of closure
+ * matches, and matching takes linear time.
+ *
+ * Supported syntax: {n}, ., |, (...), (?:...), (?<name>...), *, +, ?, reluctant
+ * quantifiers (*?, +?, ??), counted repetition with quoted braces
+ * ("{0}'{'2,3}"), ^ and $, element classes ([{0}{1}], [^{0}]) and
+ * lookarounds ((?=...), (?!...), (?<=...), (?<!...), with a bounded length,
+ * e.g. "(?={0}'{'0,3}{1})", but not "(?={0}*{1})").
+ *
+ * Example:
+ * NativeListRegex regex = ListRegex.compileNative(
+ *   "{0}{1}+",
+ *   [ { it.startsWith("A") }, { it.length() == 4 } ]
+ * )
+ * regex.findAll(list)
+ *
+ * Closures are called for all list elements before matching starts,
+ * unless lazy mode is enabled (see setLazy).
+ *
+ * Instead of closures, the elements can also be matched with
+ * ElementPredicates (see withPredicates), which avoids Groovy's
+ * dynamic dispatch and is considerably faster when called from Java.
+ *
+ * Instances are thread-safe (configure them before sharing).
+ *
+ * @author mgropp
+ */
+public class NativeListRegex<T> {
+	/**
+	 * A statically typed alternative to closures for matching list items.
+	 */
+	public static interface ElementPredicate<T> {
+		boolean test(T element);
+	}
+
+	/**
+	 * Calls a closure, converting the result with Groovy truth.
+	 */
+	private static class ClosurePredicate implements ElementPredicate<Object> {
+		private final Closure closure;
+
+		ClosurePredicate(Closure closure) {
+			this.closure = closure;
+		}
+
+		@Override
+		public boolean test(Object element) {
+			return DefaultTypeTransformation.castToBoolean(closure.call(element));
+		}
+	}
+
+	private final ListPattern pattern;
+	private final ElementPredicate<Object>[] predicates;
+
+	/** the pattern reversed, for findLast */
+	private final ListPattern reversed;
+
+	/** the predicates referenced in the pattern */
+	private final int[] used;
+
+	private volatile boolean lazy = false;
+
+	/** predicate results of elements seen before, or null */
+	private volatile IdentityCache<long[]> cache = null;
+
+	/** the pool findAllParallel uses by default (created when needed) */
+	private static class DefaultPool {
+		static final ForkJoinPool pool = new ForkJoinPool();
+	}
+
+	/**
+	 * @param pattern
+	 *   The regular expression.
+	 *   Use {0}, {1}, ... to refer to the closures to match list items.
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @throws IllegalArgumentException
+	 *   if the pattern cannot be parsed or refers to a missing closure
+	 */
+	public NativeListRegex(String pattern, List<Closure> closures) {
+		this(ListPattern.compile(pattern), toPredicates(closures));
+	}
+
+	NativeListRegex(ListPattern pattern, ElementPredicate<Object>[] predicates) {
+		this.pattern = pattern;
+		this.predicates = predicates;
+		this.used = pattern.usedPredicates(predicates.length);
+		this.reversed = pattern.reverse();
+	}
+
+	/**
+	 * Compile a regular expression using typed predicates instead of
+	 * closures.
+	 *
+	 * Example (Java):
+	 * NativeListRegex<String> regex = NativeListRegex.withPredicates(
+	 *   "{0}{1}+",
+	 *   Arrays.asList(startsWithA, hasLength4)
+	 * );
+	 *
+	 * @param pattern
+	 *   The regular expression.
+	 *   Use {0}, {1}, ... to refer to the predicates to match list items.
+	 * @param predicates
+	 *   Predicates to match list items.
+	 * @throws IllegalArgumentException
+	 *   if the pattern cannot be parsed or refers to a missing predicate
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> NativeListRegex<T> withPredicates(
+		String pattern,
+		List<? extends ElementPredicate<? super T>> predicates
+	) {
+		// Elements only ever come from List<T>, so the cast is safe.
+		return new NativeListRegex<T>(
+			ListPattern.compile(pattern),
+			predicates.toArray(new ElementPredicate[predicates.size()])
+		);
+	}
+
+	@SuppressWarnings("unchecked")
+	static ElementPredicate<Object>[] toPredicates(List<Closure> closures) {
+		ElementPredicate<Object>[] predicates = new ElementPredicate[closures.size()];
+		for (int i = 0; i < predicates.length; i++) {
+			predicates[i] = new ClosurePredicate(closures.get(i));
+		}
+		return predicates;
+	}
+
+	/**
+	 * Find the first match of the regular expression in a list.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups, may be null
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups, may be null
+	 * @return
+	 *   the matching part of the list, or null if there is no match
+	 */
+	public Collection<T> find(
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		return find(list, evaluate(list), groups, namedGroups);
+	}
+
+	/**
+	 * find with the predicate results for list already available
+	 */
+	Collection<T> find(
+		List<T> list,
+		ListVM.Input input,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		ListVM vm = new ListVM(pattern, groups != null || namedGroups != null);
+		vm.length = list.size();
+
+		if (vm.search(input, 0, false)) {
+			addGroups(vm.matchCaps, list, groups, namedGroups);
+			return list.subList(vm.matchCaps[0], vm.matchCaps[1]);
+		}
+
+		return null;
+	}
+
+	public Collection<T> find(List<T> list, List<? extends Collection<T>> groups) {
+		return find(list, groups, null);
+	}
+
+	public Collection<T> find(List<T> list) {
+		return find(list, null, null);
+	}
+
+	/**
+	 * Find the last match of the regular expression in a list:
+	 * the match (as find would return it) with the largest start position.
+	 * (This can differ from the last match findAll returns, which
+	 * doesn't look at positions inside earlier matches.)
+	 *
+	 * The list is searched backwards from the end with the reversed
+	 * pattern, and the closures are only evaluated for the elements
+	 * looked at, so this only costs as much as the distance of the match
+	 * from the end of the list.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups, may be null
+	 * @return
+	 *   the matching part of the list, or null if there is no match
+	 */
+	public Collection<T> findLast(List<T> list, List<? extends Collection<T>> groups) {
+		int length = list.size();
+		ListVM.Input input = new LazyPredicateBits(predicates, list);
+
+		ListVM reverseVM = new ListVM(reversed, false);
+		reverseVM.length = length;
+		int end = reverseVM.searchEarliestEnd(new ListVM.ReversedInput(input, length));
+		if (end < 0) {
+			return null;
+		}
+
+		// there is a match starting at length - end, find it
+		ListVM vm = new ListVM(pattern, groups != null);
+		vm.length = length;
+		vm.search(input, length - end, true);
+		addGroups(vm.matchCaps, list, groups, null);
+
+		return list.subList(vm.matchCaps[0], vm.matchCaps[1]);
+	}
+
+	public Collection<T> findLast(List<T> list) {
+		return findLast(list, null);
+	}
+
+	/**
+	 * Find all matches of the regular expression in a list.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups (one list per match),
+	 *   may be null
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups (one map per match),
+	 *   may be null
+	 * @return
+	 *   the matching parts of the list
+	 */
+	public Collection<? extends Collection<T>> findAll(
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups,
+		List<? extends Map<String,Collection<T>>> namedGroups
+	) {
+		return findAll(list, evaluate(list), groups, namedGroups);
+	}
+
+	/**
+	 * findAll with the predicate results for list already available
+	 */
+	Collection<? extends Collection<T>> findAll(
+		List<T> list,
+		ListVM.Input input,
+		List<? extends List<? extends Collection<T>>> groups,
+		List<? extends Map<String,Collection<T>>> namedGroups
+	) {
+		ListVM vm = new ListVM(pattern, groups != null || namedGroups != null);
+		vm.length = list.size();
+		return collectAll(vm, input, list, groups, namedGroups);
+	}
+
+	public Collection<? extends Collection<T>> findAll(
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups
+	) {
+		return findAll(list, groups, null);
+	}
+
+	public Collection<? extends Collection<T>> findAll(List<T> list) {
+		return findAll(list, null, null);
+	}
+
+	/**
+	 * Check whether the regular expression matches anywhere in a list.
+	 * Stops at the first position where a match is certain, and only
+	 * evaluates the closures up to there (as in lazy mode).
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   true iff find would find a match
+	 */
+	public boolean containsMatch(List<T> list) {
+		ListVM vm = new ListVM(pattern, false);
+		vm.length = list.size();
+		return vm.searchEarliestEnd(new LazyPredicateBits(predicates, list)) >= 0;
+	}
+
+	/**
+	 * Count the matches of the regular expression in a list,
+	 * without creating objects per match.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   the number of matches findAll would return
+	 */
+	public int count(List<T> list) {
+		return count(list.size(), evaluate(list));
+	}
+
+	/**
+	 * count with the predicate results for the list already available
+	 */
+	int count(int length, ListVM.Input input) {
+		ListVM vm = new ListVM(pattern, false);
+		vm.length = length;
+
+		int count = 0;
+		int from = 0;
+		while (from <= vm.length && vm.search(input, from, false)) {
+			count++;
+			from = ListVM.next(vm.matchCaps);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Find all matches of the regular expression in a list, without
+	 * creating objects per match.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @return
+	 *   start and end (exclusive) of all matches, two entries per match
+	 */
+	public int[] findAllOffsets(List<T> list) {
+		return findAllOffsets(list.size(), evaluate(list));
+	}
+
+	/**
+	 * findAllOffsets with the predicate results for the list already available
+	 */
+	int[] findAllOffsets(int length, ListVM.Input input) {
+		ListVM vm = new ListVM(pattern, false);
+		vm.length = length;
+		return vm.searchAll(input);
+	}
+
+	/**
+	 * Find all matches of the regular expression in a list and pass their
+	 * offsets to a visitor, without creating objects per match.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   also pass the offsets of capturing groups
+	 * @param visitor
+	 *   receives the matches, in order
+	 */
+	public void findAll(List<T> list, boolean groups, ListMatchVisitor visitor) {
+		ListVM vm = new ListVM(pattern, groups);
+		vm.length = list.size();
+		vm.searchAll(evaluate(list), visitor);
+	}
+
+	/**
+	 * Find all matches of the regular expression in a list, using all
+	 * available processors.
+	 * The predicates are evaluated in parallel (so they have to be
+	 * thread-safe). If the pattern has a maximum match length (no * or +),
+	 * the list is also scanned in parallel chunks.
+	 * The result is the same as findAll's.
+	 * This only pays off for very large lists.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups (one list per match),
+	 *   may be null
+	 * @param pool
+	 *   the pool to run on
+	 * @return
+	 *   the matching parts of the list
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Collection<? extends Collection<T>> findAllParallel(
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups,
+		ForkJoinPool pool
+	) {
+		int length = list.size();
+		PredicateBits input = PredicateBits.evaluateParallel(predicates, used, list, pool);
+		if (!ParallelFindAll.applicable(pattern, length, pool)) {
+			ListVM vm = new ListVM(pattern, groups != null);
+			vm.length = length;
+			return collectAll(vm, input, list, groups, null);
+		}
+
+		int[] caps = ParallelFindAll.findAll(pattern, input, length, groups != null, pool);
+		int slots = pattern.slots(groups != null);
+
+		List<Collection<T>> result = new ArrayList<>(caps.length / slots);
+		if (groups != null) {
+			groups.clear();
+		}
+
+		int[] matchCaps = new int[slots];
+		for (int i = 0; i < caps.length; i += slots) {
+			result.add(list.subList(caps[i], caps[i + 1]));
+
+			if (groups != null) {
+				System.arraycopy(caps, i, matchCaps, 0, slots);
+				List<Collection<T>> matchGroup = new ArrayList<>(pattern.groupCount + 1);
+				addGroups(matchCaps, list, matchGroup, null);
+				((List)groups).add(matchGroup);
+			}
+		}
+
+		return result;
+	}
+
+	public Collection<? extends Collection<T>> findAllParallel(
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups
+	) {
+		return findAllParallel(list, groups, DefaultPool.pool);
+	}
+
+	public Collection<? extends Collection<T>> findAllParallel(List<T> list) {
+		return findAllParallel(list, null, DefaultPool.pool);
+	}
+
+	/**
+	 * Find the first match in each of many lists, in parallel on pool
+	 * (the predicates have to be thread-safe).
+	 * Meant for lots of short lists (e.g. sentences); each worker reuses
+	 * its VM and buffers for all lists it processes.
+	 *
+	 * @param lists
+	 *   The lists to run the regex on
+	 * @param pool
+	 *   the pool to run on
+	 * @return
+	 *   for each list (in order): the match (see find), or null
+	 */
+	public List<Collection<T>> findBatch(Collection<? extends List<T>> lists, ForkJoinPool pool) {
+		List<? extends List<T>> input = new ArrayList<>(lists);
+		int[][] offsets = BatchMatcher.run(pattern, predicates, used, input, BatchMatcher.FIND, pool);
+
+		List<Collection<T>> result = new ArrayList<>(offsets.length);
+		for (int i = 0; i < offsets.length; i++) {
+			result.add((offsets[i] == null) ? null : input.get(i).subList(offsets[i][0], offsets[i][1]));
+		}
+		return result;
+	}
+
+	public List<Collection<T>> findBatch(Collection<? extends List<T>> lists) {
+		return findBatch(lists, DefaultPool.pool);
+	}
+
+	/**
+	 * Find all matches in each of many lists, in parallel on pool
+	 * (see findBatch).
+	 *
+	 * @return
+	 *   for each list (in order): the matches (see findAll)
+	 */
+	public List<List<Collection<T>>> findAllBatch(Collection<? extends List<T>> lists, ForkJoinPool pool) {
+		List<? extends List<T>> input = new ArrayList<>(lists);
+		int[][] offsets = BatchMatcher.run(pattern, predicates, used, input, BatchMatcher.FIND_ALL, pool);
+
+		List<List<Collection<T>>> result = new ArrayList<>(offsets.length);
+		for (int i = 0; i < offsets.length; i++) {
+			List<Collection<T>> matches = new ArrayList<>();
+			if (offsets[i] != null) {
+				for (int j = 0; j < offsets[i].length; j += 2) {
+					matches.add(input.get(i).subList(offsets[i][j], offsets[i][j + 1]));
+				}
+			}
+			result.add(matches);
+		}
+		return result;
+	}
+
+	public List<List<Collection<T>>> findAllBatch(Collection<? extends List<T>> lists) {
+		return findAllBatch(lists, DefaultPool.pool);
+	}
+
+	/**
+	 * Match each of many complete lists, in parallel on pool
+	 * (see findBatch).
+	 *
+	 * @return
+	 *   for each list (in order): true iff it matches (see matches)
+	 */
+	public List<Boolean> matchesBatch(Collection<? extends List<T>> lists, ForkJoinPool pool) {
+		List<? extends List<T>> input = new ArrayList<>(lists);
+		int[][] offsets = BatchMatcher.run(pattern, predicates, used, input, BatchMatcher.MATCHES, pool);
+
+		List<Boolean> result = new ArrayList<>(offsets.length);
+		for (int[] match : offsets) {
+			result.add(match != null);
+		}
+		return result;
+	}
+
+	public List<Boolean> matchesBatch(Collection<? extends List<T>> lists) {
+		return matchesBatch(lists, DefaultPool.pool);
+	}
+
+	/**
+	 * Find all matches of the regular expression in a stream of elements.
+	 * Elements are read from the iterator only as far as needed to
+	 * determine the next match, and only elements that can still be part
+	 * of a match are kept in memory.
+	 *
+	 * @param elements
+	 *   The elements to run the regex on
+	 * @return
+	 *   the matches (same as findAll on the complete list)
+	 */
+	public Iterator<List<T>> findAll(final Iterator<T> elements) {
+		final Queue<List<T>> matches = new ArrayDeque<>();
+		final StreamingListMatcher<T> matcher = streamingMatcher(
+			new StreamingListMatcher.MatchListener<T>() {
+				@Override
+				public void match(long start, List<T> match) {
+					matches.add(match);
+				}
+			}
+		);
+
+		return new Iterator<List<T>>() {
+			@Override
+			public boolean hasNext() {
+				while (matches.isEmpty() && elements.hasNext()) {
+					matcher.add(elements.next());
+				}
+
+				if (matches.isEmpty()) {
+					matcher.finish();
+				}
+
+				return !matches.isEmpty();
+			}
+
+			@Override
+			public List<T> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				return matches.remove();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Create a matcher that finds all matches in elements
+	 * added one at a time (see StreamingListMatcher).
+	 *
+	 * @param listener
+	 *   receives the matches
+	 */
+	public StreamingListMatcher<T> streamingMatcher(StreamingListMatcher.MatchListener<T> listener) {
+		return new StreamingListMatcher<T>(pattern, predicates, listener);
+	}
+
+	/**
+	 * Create a matcher for a list that keeps growing, finding the matches
+	 * in the new elements after each append
+	 * (see IncrementalListMatcher).
+	 *
+	 * @param list
+	 *   the list (elements may only be appended)
+	 */
+	public IncrementalListMatcher<T> incrementalMatcher(List<T> list) {
+		return new IncrementalListMatcher<T>(pattern, predicates, list);
+	}
+
+	/**
+	 * Replace all matches of the regular expression in a list.
+	 *
+	 * Example:
+	 * regex.replaceAll(list, { List match -> [ match.sum() ] })
+	 * regex.replaceAll(list, { List match, List groups -> groups[2] + groups[1] })
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param replacer
+	 *   Called for each match (and its capturing groups if the closure
+	 *   takes two parameters), returns the collection of elements to put
+	 *   in place of the match (or null to remove it).
+	 * @return
+	 *   a new list with the matches replaced
+	 */
+	public List<T> replaceAll(List<T> list, Closure replacer) {
+		ListRewriting.Replacer<T> visitor = new ListRewriting.Replacer<T>(list, replacer);
+		findAll(list, visitor.wantsGroups(), visitor);
+		return visitor.finish();
+	}
+
+	/**
+	 * Split a list around the matches of the regular expression.
+	 * Like Pattern.split with a negative limit, empty parts are kept
+	 * (but an empty match at the beginning does not cause an empty part).
+	 *
+	 * @param list
+	 *   The list to split
+	 * @return
+	 *   the parts of the list between the matches (new lists)
+	 */
+	public List<List<T>> split(List<T> list) {
+		ListRewriting.Splitter<T> visitor = new ListRewriting.Splitter<T>(list);
+		findAll(list, false, visitor);
+		return visitor.finish();
+	}
+
+	/**
+	 * Try to match an entire list with the regular expression.
+	 *
+	 * @param list
+	 *   The list to run the regex on
+	 * @param groups
+	 *   (out) accepts contents of capturing groups, may be null
+	 * @param namedGroups
+	 *   (out) accepts contents of named groups, may be null
+	 * @return
+	 *   true iff the entire list matches
+	 */
+	public boolean matches(
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		return matches(list, evaluate(list), groups, namedGroups);
+	}
+
+	/**
+	 * matches with the predicate results for list already available
+	 */
+	boolean matches(
+		List<T> list,
+		ListVM.Input input,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		ListVM vm = new ListVM(pattern, groups != null || namedGroups != null);
+		vm.length = list.size();
+		vm.requireEnd = true;
+
+		if (vm.search(input, 0, true)) {
+			addGroups(vm.matchCaps, list, groups, namedGroups);
+			return true;
+		}
+
+		return false;
+	}
+
+	public boolean matches(List<T> list, List<? extends Collection<T>> groups) {
+		return matches(list, groups, null);
+	}
+
+	public boolean matches(List<T> list) {
+		return matches(list, null, null);
+	}
+
+	public String getPattern() {
+		return pattern.source;
+	}
+
+	/**
+	 * @return
+	 *   the indices of the named groups (as used for groups and
+	 *   ListMatchVisitor offsets), by name
+	 */
+	public Map<String,Integer> getGroupNames() {
+		return pattern.groupNames;
+	}
+
+	/**
+	 * In lazy mode, a closure is only called for a list element when
+	 * the matcher needs its result (at most once per element).
+	 * find and matches then only cost as much as the part of the list
+	 * they actually look at.
+	 * By default, all closures are called for all elements before
+	 * matching starts, which is faster if most of the list is
+	 * inspected anyway (findAll).
+	 *
+	 * @param lazy
+	 *   true to evaluate closures lazily
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * Remember the closure results for up to size distinct elements
+	 * (by identity), across calls and lists.
+	 * This pays off if the lists consist of the same objects over and over
+	 * (e.g. interned tokens) and the closures are expensive.
+	 * The least recently used elements are forgotten first.
+	 * The cache is not used in lazy mode, by findAllParallel or by
+	 * streaming matchers.
+	 * Don't use this if the closure results for an element can change.
+	 *
+	 * @param size
+	 *   maximum number of elements to remember, 0 to disable caching
+	 */
+	public void setCacheSize(int size) {
+		this.cache = (size > 0) ? new IdentityCache<long[]>(size) : null;
+	}
+
+	public int getCacheSize() {
+		IdentityCache<long[]> current = cache;
+		return (current == null) ? 0 : current.getMaxSize();
+	}
+
+	private ListVM.Input evaluate(List<T> list) {
+		if (lazy) {
+			return new LazyPredicateBits(predicates, list);
+		}
+
+		IdentityCache<long[]> current = cache;
+		if (current != null) {
+			return PredicateBits.evaluate(predicates, used, list, current);
+		}
+
+		return PredicateBits.evaluate(predicates, used, list);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<Collection<T>> collectAll(
+		ListVM vm,
+		ListVM.Input input,
+		List<T> list,
+		List<? extends List<? extends Collection<T>>> groups,
+		List<? extends Map<String,Collection<T>>> namedGroups
+	) {
+		List<Collection<T>> result = new ArrayList<>();
+		if (groups != null) {
+			groups.clear();
+		}
+		if (namedGroups != null) {
+			namedGroups.clear();
+		}
+
+		int from = 0;
+		while (from <= vm.length && vm.search(input, from, false)) {
+			result.add(list.subList(vm.matchCaps[0], vm.matchCaps[1]));
+
+			List<Collection<T>> matchGroup = null;
+			Map<String,Collection<T>> matchNamedGroup = null;
+			if (groups != null) {
+				matchGroup = new ArrayList<>(pattern.groupCount + 1);
+				((List)groups).add(matchGroup);
+			}
+			if (namedGroups != null) {
+				matchNamedGroup = new LinkedHashMap<>();
+				((List)namedGroups).add(matchNamedGroup);
+			}
+			addGroups(vm.matchCaps, list, matchGroup, matchNamedGroup);
+
+			from = ListVM.next(vm.matchCaps);
+		}
+
+		return result;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void addGroups(
+		int[] caps,
+		List<T> list,
+		List<? extends Collection<T>> groups,
+		Map<String,Collection<T>> namedGroups
+	) {
+		if (groups != null) {
+			groups.clear();
+			for (int i = 0; i < caps.length; i += 2) {
+				if (caps[i] < 0 || caps[i + 1] < 0) {
+					groups.add(null);
+					continue;
+				}
+				((List)groups).add(list.subList(caps[i], caps[i + 1]));
+			}
+		}
+
+		if (namedGroups != null) {
+			namedGroups.clear();
+			for (Map.Entry<String,Integer> entry : pattern.groupNames.entrySet()) {
+				int i = 2*entry.getValue();
+				namedGroups.put(
+					entry.getKey(),
+					(caps[i] < 0 || caps[i + 1] < 0) ? null : list.subList(caps[i], caps[i + 1])
+				);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return pattern.source;
+	}
+}
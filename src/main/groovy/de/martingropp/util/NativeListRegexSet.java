@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import groovy.lang.Closure;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Many NativeListRegex patterns sharing one set of closures, applied to
+ * a list together (like RE2's Set).
+ *
+ * Each closure is called only once per list element, no matter how many
+ * patterns use it, and the patterns that match somewhere (or all their
+ * matches) are determined in a single scan of the list.
+ *
+ * Example:
+ * NativeListRegexSet set = ListRegex.compileSet(
+ *   [ "{0}{1}+", "{2}{2}", "^{1}" ],
+ *   [ { it.startsWith("A") }, { it.length() == 4 }, { it.isEmpty() } ]
+ * )
+ * set.matching(list) // e.g. [ 0, 2 ]
+ * set.findAll(list)  // the matches of each pattern
+ *
+ * Instances are thread-safe.
+ *
+ * @author mgropp
+ */
+public class NativeListRegexSet<T> {
+	private final ListPattern[] patterns;
+
+	/** all patterns in one program */
+	private final ListPattern union;
+
+	private final NativeListRegex.ElementPredicate<Object>[] predicates;
+
+	/** the predicates referenced in any of the patterns */
+	private final int[] used;
+
+	/**
+	 * @param patterns
+	 *   The regular expressions (see NativeListRegex).
+	 *   Use {0}, {1}, ... to refer to the closures to match list items.
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 * @throws IllegalArgumentException
+	 *   if a pattern cannot be parsed or refers to a missing closure,
+	 *   or if there are no patterns
+	 */
+	public NativeListRegexSet(List<String> patterns, List<Closure> closures) {
+		this(patterns, NativeListRegex.toPredicates(closures));
+	}
+
+	private NativeListRegexSet(List<String> patterns, NativeListRegex.ElementPredicate<Object>[] predicates) {
+		if (patterns.isEmpty()) {
+			throw new IllegalArgumentException("No patterns.");
+		}
+
+		this.patterns = new ListPattern[patterns.size()];
+		for (int i = 0; i < this.patterns.length; i++) {
+			this.patterns[i] = ListPattern.compile(patterns.get(i));
+		}
+
+		this.union = ListPattern.union(this.patterns);
+		this.predicates = predicates;
+		this.used = union.usedPredicates(predicates.length);
+	}
+
+	/**
+	 * Like the constructor, but using typed predicates instead of closures
+	 * (see NativeListRegex.withPredicates).
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> NativeListRegexSet<T> withPredicates(
+		List<String> patterns,
+		List<? extends NativeListRegex.ElementPredicate<? super T>> predicates
+	) {
+		return new NativeListRegexSet<T>(
+			patterns,
+			predicates.toArray(new NativeListRegex.ElementPredicate[predicates.size()])
+		);
+	}
+
+	/**
+	 * Find out which patterns match somewhere in a list.
+	 *
+	 * @param list
+	 *   The list to run the regexes on
+	 * @return
+	 *   the (ascending) indices of all patterns with at least one match
+	 */
+	public List<Integer> matching(List<T> list) {
+		return indices(matchingSet(list.size(), evaluate(list)));
+	}
+
+	/**
+	 * Find all matches of each pattern in a list.
+	 *
+	 * @param list
+	 *   The list to run the regexes on
+	 * @return
+	 *   one entry per pattern: the matches NativeListRegex.findAll would
+	 *   return for it
+	 */
+	public List<Collection<? extends Collection<T>>> findAll(List<T> list) {
+		ListVM vm = new ListVM(union, false);
+		vm.length = list.size();
+		int[][] all = vm.searchAllSet(evaluate(list), patterns);
+
+		List<Collection<? extends Collection<T>>> result = new ArrayList<>(patterns.length);
+		for (int i = 0; i < patterns.length; i++) {
+			int[] caps = all[i];
+			if (caps.length == 0) {
+				result.add(Collections.<Collection<T>>emptyList());
+				continue;
+			}
+
+			List<Collection<T>> matches = new ArrayList<>(caps.length / 2);
+			for (int j = 0; j < caps.length; j += 2) {
+				matches.add(list.subList(caps[j], caps[j + 1]));
+			}
+			result.add(matches);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return
+	 *   the number of patterns
+	 */
+	public int size() {
+		return patterns.length;
+	}
+
+	public String getPattern(int index) {
+		return patterns[index].source;
+	}
+
+	private PredicateBits evaluate(List<T> list) {
+		return PredicateBits.evaluate(predicates, used, list);
+	}
+
+	private BitSet matchingSet(int length, PredicateBits input) {
+		ListVM vm = new ListVM(union, false);
+		vm.length = length;
+		return vm.searchSet(input, patterns.length);
+	}
+
+	private static List<Integer> indices(BitSet set) {
+		List<Integer> result = new ArrayList<>(set.cardinality());
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+			result.add(i);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return union.source;
+	}
+}
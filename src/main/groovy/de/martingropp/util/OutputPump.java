@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the output of many processes with a few threads, instead of
+ * two threads per ProcessWatcher.
+ *
+ * Process streams can't be used with a Selector, so they are polled:
+ * each thread takes the next stream from a queue, reads whatever is
+ * available without blocking, and puts it back. When a whole round
+ * over the streams yields nothing, the thread sleeps for the poll
+ * interval, which is also the maximum delay of the output.
+ *
+ * Example:
+ * OutputPump pump = new OutputPump(2);
+ * for (String[] command : commands) {
+ *   ProcessWatcher watcher = new ProcessWatcher(command);
+ *   watcher.setPump(pump);
+ *   watcher.start();
+ * }
+ *
+ * A stream ends when the process has exited and everything it wrote has
+ * been read; output written later by child processes that inherited the
+ * pipe is not read (the JDK discards it as well).
+ *
+ * Listeners are called on the pump's threads, so slow listeners delay
+ * the output of other processes.
+ * The threads are daemon threads by default; call shutdown to stop them
+ * earlier.
+ *
+ * @author mgropp
+ */
+public class OutputPump {
+	/**
+	 * Receives the output of one stream
+	 * (calls are never concurrent).
+	 */
+	interface Sink {
+		void write(byte[] buffer, int offset, int length);
+
+		/**
+		 * Called once at the end.
+		 *
+		 * @param eof
+		 *   true at the end of the stream, false if reading failed
+		 */
+		void close(boolean eof);
+	}
+
+	private static class Stream {
+		final InputStream in;
+		final Process process;
+		final Sink sink;
+
+		Stream(InputStream in, Process process, Sink sink) {
+			this.in = in;
+			this.process = process;
+			this.sink = sink;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	// results of pump
+	private static final int IDLE = 0;
+	private static final int DATA = 1;
+	private static final int EOF = 2;
+	private static final int FAILED = 3;
+
+	private static final AtomicInteger pumpCount = new AtomicInteger();
+
+	/** streams not being read at the moment */
+	private final BlockingQueue<Stream> streams = new LinkedBlockingQueue<>();
+	private final Thread[] threads;
+	private final long pollMillis;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param threadCount
+	 *   number of threads reading the streams
+	 */
+	public OutputPump(int threadCount) {
+		this(threadCount, 5, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param threadCount
+	 *   number of threads reading the streams
+	 * @param pollInterval
+	 *   how long to wait when no stream has new output
+	 */
+	public OutputPump(int threadCount, long pollInterval, TimeUnit unit) {
+		this(threadCount, pollInterval, unit, null);
+	}
+
+	/**
+	 * @param threadCount
+	 *   number of threads reading the streams
+	 * @param pollInterval
+	 *   how long to wait when no stream has new output
+	 * @param threadFactory
+	 *   creates the threads (e.g. ProcessWatcher.virtualThreadFactory()),
+	 *   or null for daemon platform threads
+	 */
+	public OutputPump(int threadCount, long pollInterval, TimeUnit unit, ThreadFactory threadFactory) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("At least one thread is needed.");
+		}
+
+		this.pollMillis = Math.max(1, unit.toMillis(pollInterval));
+
+		int id = pumpCount.incrementAndGet();
+		threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			if (threadFactory == null) {
+				threads[i] = new Thread(new Worker(), "OutputPump-" + id + "-" + i);
+				threads[i].setDaemon(true);
+			} else {
+				threads[i] = threadFactory.newThread(new Worker());
+			}
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Start reading a stream of process.
+	 */
+	void register(InputStream in, Process process, Sink sink) {
+		if (shutdown) {
+			throw new IllegalStateException("The pump has been shut down.");
+		}
+		streams.add(new Stream(in, process, sink));
+	}
+
+	/**
+	 * Stop all threads. Streams that are still open are not read anymore.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			// streams polled in a row without getting any output
+			int idle = 0;
+
+			while (!shutdown) {
+				Stream stream;
+				try {
+					stream = streams.take();
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+
+				int result;
+				try {
+					result = pump(stream, buffer);
+				}
+				catch (RuntimeException e) {
+					// a listener failed; like an exception in a watcher thread,
+					// this ends the stream
+					close(stream, false);
+					report(e);
+					continue;
+				}
+
+				if (result == EOF || result == FAILED) {
+					close(stream, result == EOF);
+					continue;
+				}
+				streams.add(stream);
+
+				idle = (result == DATA) ? 0 : idle + 1;
+				if (idle > streams.size()) {
+					idle = 0;
+					try {
+						Thread.sleep(pollMillis);
+					}
+					catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the sink of stream (exactly once per stream), reporting
+	 * exceptions of its listeners.
+	 */
+	private static void close(Stream stream, boolean eof) {
+		try {
+			stream.sink.close(eof);
+		}
+		catch (RuntimeException e) {
+			report(e);
+		}
+	}
+
+	private static void report(RuntimeException e) {
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	/**
+	 * Read what is available from stream without blocking.
+	 * The sink is not closed here, see close.
+	 *
+	 * @return
+	 *   IDLE, DATA, EOF or FAILED
+	 */
+	private static int pump(Stream stream, byte[] buffer) {
+		try {
+			// Check the process first: once it is gone, everything it
+			// wrote is available. Never read more than that, read blocks
+			// if a child process still has the pipe (and that would
+			// block a thread shared with other processes).
+			boolean alive = isAlive(stream.process);
+			int available = stream.in.available();
+			if (available <= 0) {
+				return alive ? IDLE : EOF;
+			}
+
+			int count = stream.in.read(buffer, 0, Math.min(available, buffer.length));
+			if (count < 0) {
+				return EOF;
+			}
+
+			stream.sink.write(buffer, 0, count);
+			return DATA;
+		}
+		catch (IOException e) {
+			return FAILED;
+		}
+	}
+
+	private static boolean isAlive(Process process) {
+		try {
+			process.exitValue();
+			return false;
+		}
+		catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * findAll with the list split into chunks that are scanned in parallel.
+ *
+ * Each chunk finds the matches starting inside it, as if the search
+ * started at the beginning of the chunk (matches may extend into the
+ * next chunk).
+ * The sequential search may enter a chunk at a different position
+ * (after a match crossing the chunk boundary). In that case it is
+ * continued sequentially until it reaches one of the positions the
+ * chunk's search continued from; from there on, the results are the
+ * same.
+ *
+ * This only pays off if matches are short compared to the chunks,
+ * so it's only used for patterns with a maximum match length.
+ *
+ * @author mgropp
+ */
+final class ParallelFindAll {
+	/** minimum number of elements per chunk */
+	private static final int MIN_CHUNK_SIZE = 4096;
+
+	/** chunks per worker thread, for load balancing */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private ParallelFindAll() {
+	}
+
+	/**
+	 * Matches found in one chunk.
+	 */
+	private static class Chunk {
+		final int start;
+		final int end;
+
+		/** search positions, starting with start; search(from[i]) found match i */
+		int[] from = new int[16];
+		/** capture slots of the matches */
+		int[] caps;
+		int count = 0;
+
+		Chunk(int start, int end, int slots) {
+			this.start = start;
+			this.end = end;
+			this.caps = new int[16 * slots];
+		}
+	}
+
+	/**
+	 * @return
+	 *   true if the pattern and list are suitable for a parallel scan
+	 */
+	static boolean applicable(ListPattern pattern, int length, ForkJoinPool pool) {
+		return
+			pattern.maxLength >= 0 &&
+			length >= 2 * chunkSize(pattern, length, pool);
+	}
+
+	private static int chunkSize(ListPattern pattern, int length, ForkJoinPool pool) {
+		int size = length / (CHUNKS_PER_THREAD * pool.getParallelism());
+		return Math.max(size, Math.max(MIN_CHUNK_SIZE, 4 * pattern.maxLength));
+	}
+
+	/**
+	 * Find all matches.
+	 *
+	 * @return
+	 *   capture slots of all matches (vm.slots per match),
+	 *   in the order findAll would find them
+	 */
+	static int[] findAll(
+		final ListPattern pattern,
+		final ListVM.Input input,
+		final int length,
+		final boolean groups,
+		ForkJoinPool pool
+	) {
+		int chunkSize = chunkSize(pattern, length, pool);
+		final int slots = pattern.slots(groups);
+
+		// the last chunk includes length (empty matches at the end)
+		List<RecursiveTask<Chunk>> tasks = new ArrayList<>();
+		for (int start = 0; start <= length; start += chunkSize) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start + chunkSize, length + 1);
+			tasks.add(
+				new RecursiveTask<Chunk>() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected Chunk compute() {
+						return scan(pattern, input, length, groups, slots, chunkStart, chunkEnd);
+					}
+				}
+			);
+		}
+
+		for (RecursiveTask<Chunk> task : tasks) {
+			pool.execute(task);
+		}
+
+		// stitch
+		ListVM vm = new ListVM(pattern, groups);
+		vm.length = length;
+		int[] result = new int[16 * slots];
+		int count = 0;
+		int from = 0;
+		for (RecursiveTask<Chunk> task : tasks) {
+			Chunk chunk = task.join();
+
+			while (from < chunk.end) {
+				int i = Arrays.binarySearch(chunk.from, 0, chunk.count + 1, from);
+				if (i >= 0) {
+					// same search position => same matches from here on
+					int matches = chunk.count - i;
+					if (count + matches > result.length / slots) {
+						result = Arrays.copyOf(result, Math.max(2 * result.length, (count + matches) * slots));
+					}
+					System.arraycopy(chunk.caps, i * slots, result, count * slots, matches * slots);
+					count += matches;
+					from = Math.max(chunk.from[chunk.count], chunk.end);
+					break;
+				}
+
+				// different entry point => search sequentially
+				vm.maxStart = chunk.end - 1;
+				if (!vm.search(input, from, false)) {
+					from = chunk.end;
+					break;
+				}
+
+				if (count == result.length / slots) {
+					result = Arrays.copyOf(result, 2 * result.length);
+				}
+				System.arraycopy(vm.matchCaps, 0, result, count * slots, slots);
+				count++;
+				from = ListVM.next(vm.matchCaps);
+			}
+		}
+
+		return Arrays.copyOf(result, count * slots);
+	}
+
+	/**
+	 * Find the matches starting in [start, end), beginning the search at start.
+	 */
+	private static Chunk scan(
+		ListPattern pattern,
+		ListVM.Input input,
+		int length,
+		boolean groups,
+		int slots,
+		int start,
+		int end
+	) {
+		Chunk chunk = new Chunk(start, end, slots);
+		ListVM vm = new ListVM(pattern, groups);
+		vm.length = length;
+		vm.maxStart = end - 1;
+
+		int from = start;
+		chunk.from[0] = from;
+		while (from < end && vm.search(input, from, false)) {
+			if (chunk.count + 2 > chunk.from.length) {
+				chunk.from = Arrays.copyOf(chunk.from, 2 * chunk.from.length);
+				chunk.caps = Arrays.copyOf(chunk.caps, 2 * chunk.caps.length);
+			}
+
+			System.arraycopy(vm.matchCaps, 0, chunk.caps, chunk.count * slots, slots);
+			chunk.count++;
+			from = ListVM.next(vm.matchCaps);
+			chunk.from[chunk.count] = from;
+		}
+
+		return chunk;
+	}
+}
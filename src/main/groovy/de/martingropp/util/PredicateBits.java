@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The results of all predicates for all elements of a list,
+ * one bitset per element.
+ *
+ * @author mgropp
+ */
+final class PredicateBits implements ListVM.Input {
+	/** longs per element */
+	final int words;
+	final int length;
+	final long[] bits;
+
+	PredicateBits(int predicateCount, int length) {
+		this.words = Math.max(1, (predicateCount + 63) >>> 6);
+		this.length = length;
+		this.bits = new long[words * length];
+	}
+
+	/**
+	 * Evaluate the given predicates for all elements of list.
+	 *
+	 * @param predicates
+	 *   all predicates
+	 * @param used
+	 *   indices of the predicates to evaluate
+	 */
+	static PredicateBits evaluate(NativeListRegex.ElementPredicate<Object>[] predicates, int[] used, List<?> list) {
+		PredicateBits result = new PredicateBits(predicates.length, list.size());
+		long[] bits = result.bits;
+		int words = result.words;
+
+		int offset = 0;
+		for (Object element : list) {
+			for (int p : used) {
+				if (predicates[p].test(element)) {
+					bits[offset + (p >>> 6)] |= 1L << p;
+				}
+			}
+			offset += words;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Like evaluate, but looks up the results for each element in cache
+	 * first, and only evaluates the predicates for elements not found there.
+	 */
+	static PredicateBits evaluate(
+		NativeListRegex.ElementPredicate<Object>[] predicates,
+		int[] used,
+		List<?> list,
+		IdentityCache<long[]> cache
+	) {
+		PredicateBits result = new PredicateBits(predicates.length, list.size());
+		long[] bits = result.bits;
+		int words = result.words;
+
+		int offset = 0;
+		for (Object element : list) {
+			long[] elementBits = cache.get(element);
+			if (elementBits == null) {
+				elementBits = new long[words];
+				for (int p : used) {
+					if (predicates[p].test(element)) {
+						elementBits[p >>> 6] |= 1L << p;
+					}
+				}
+				cache.put(element, elementBits);
+			}
+
+			System.arraycopy(elementBits, 0, bits, offset, words);
+			offset += words;
+		}
+
+		return result;
+	}
+
+	static PredicateBits evaluate(IntListRegex.IntElementPredicate[] predicates, int[] used, int[] values) {
+		PredicateBits result = new PredicateBits(predicates.length, values.length);
+		long[] bits = result.bits;
+		int words = result.words;
+
+		int offset = 0;
+		for (int value : values) {
+			for (int p : used) {
+				if (predicates[p].test(value)) {
+					bits[offset + (p >>> 6)] |= 1L << p;
+				}
+			}
+			offset += words;
+		}
+
+		return result;
+	}
+
+	static PredicateBits evaluate(LongListRegex.LongElementPredicate[] predicates, int[] used, long[] values) {
+		PredicateBits result = new PredicateBits(predicates.length, values.length);
+		long[] bits = result.bits;
+		int words = result.words;
+
+		int offset = 0;
+		for (long value : values) {
+			for (int p : used) {
+				if (predicates[p].test(value)) {
+					bits[offset + (p >>> 6)] |= 1L << p;
+				}
+			}
+			offset += words;
+		}
+
+		return result;
+	}
+
+	static PredicateBits evaluate(DoubleListRegex.DoubleElementPredicate[] predicates, int[] used, double[] values) {
+		PredicateBits result = new PredicateBits(predicates.length, values.length);
+		long[] bits = result.bits;
+		int words = result.words;
+
+		int offset = 0;
+		for (double value : values) {
+			for (int p : used) {
+				if (predicates[p].test(value)) {
+					bits[offset + (p >>> 6)] |= 1L << p;
+				}
+			}
+			offset += words;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Evaluate the given predicates for all elements of list,
+	 * in parallel on pool.
+	 * (The predicates have to be thread-safe, of course.)
+	 *
+	 * @param predicates
+	 *   all predicates
+	 * @param used
+	 *   indices of the predicates to evaluate
+	 */
+	static PredicateBits evaluateParallel(
+		final NativeListRegex.ElementPredicate<Object>[] predicates,
+		final int[] used,
+		List<?> list,
+		ForkJoinPool pool
+	) {
+		final List<?> elements = (list instanceof RandomAccess) ? list : new ArrayList<>(list);
+		final PredicateBits result = new PredicateBits(predicates.length, elements.size());
+
+		pool.invoke(new EvaluationTask(predicates, used, elements, result, 0, elements.size()));
+
+		return result;
+	}
+
+	private static class EvaluationTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** don't split ranges smaller than this */
+		private static final int MIN_SIZE = 1024;
+
+		private final NativeListRegex.ElementPredicate<Object>[] predicates;
+		private final int[] used;
+		private final List<?> list;
+		private final PredicateBits result;
+		private final int start;
+		private final int end;
+
+		EvaluationTask(
+			NativeListRegex.ElementPredicate<Object>[] predicates,
+			int[] used,
+			List<?> list,
+			PredicateBits result,
+			int start,
+			int end
+		) {
+			this.predicates = predicates;
+			this.used = used;
+			this.list = list;
+			this.result = result;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > MIN_SIZE) {
+				int middle = (start + end) >>> 1;
+				invokeAll(
+					new EvaluationTask(predicates, used, list, result, start, middle),
+					new EvaluationTask(predicates, used, list, result, middle, end)
+				);
+				return;
+			}
+
+			long[] bits = result.bits;
+			int words = result.words;
+			for (int i = start; i < end; i++) {
+				Object element = list.get(i);
+				int offset = i*words;
+				for (int p : used) {
+					if (predicates[p].test(element)) {
+						bits[offset + (p >>> 6)] |= 1L << p;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean test(int index, int predicate) {
+		return (bits[index*words + (predicate >>> 6)] & (1L << predicate)) != 0;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import groovy.lang.Closure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list together with the results of a set of closures for each of its
+ * elements, to run many NativeListRegex patterns on it without calling
+ * the closures again.
+ *
+ * Example:
+ * PreparedList prepared = ListRegex.prepare(
+ *   list,
+ *   [ { it.startsWith("A") }, { it.length() == 4 }, { it.isEmpty() } ]
+ * )
+ * prepared.findAll("{0}{1}+")
+ * prepared.matches("{2}*")
+ * prepared.set(3, "Abcd") // only calls the closures for the new element
+ *
+ * All closures are called for every element (the patterns aren't known
+ * in advance).
+ *
+ * Not thread-safe.
+ *
+ * @author mgropp
+ */
+public class PreparedList<T> {
+	private final NativeListRegex.ElementPredicate<Object>[] predicates;
+
+	/** longs per element */
+	private final int words;
+
+	private final List<T> elements;
+	private long[] bits;
+
+	private final Bits input = new Bits();
+
+	/** compiled patterns, by source */
+	private final Map<String,NativeListRegex<T>> regexes = new HashMap<>();
+
+	/**
+	 * The predicate results of all elements.
+	 */
+	private class Bits implements ListVM.Input {
+		@Override
+		public boolean test(int index, int predicate) {
+			return (bits[index*words + (predicate >>> 6)] & (1L << predicate)) != 0;
+		}
+	}
+
+	/**
+	 * @param list
+	 *   The elements (copied, changes to list are not seen).
+	 * @param closures
+	 *   Closures to match list items (returning boolean values).
+	 */
+	public PreparedList(List<T> list, List<Closure> closures) {
+		this(list, NativeListRegex.toPredicates(closures));
+	}
+
+	private PreparedList(List<T> list, NativeListRegex.ElementPredicate<Object>[] predicates) {
+		this.predicates = predicates;
+		this.words = Math.max(1, (predicates.length + 63) >>> 6);
+		this.elements = new ArrayList<>(list);
+		this.bits = new long[Math.max(16, elements.size()) * words];
+
+		for (int i = 0; i < elements.size(); i++) {
+			evaluate(i);
+		}
+	}
+
+	/**
+	 * Like the constructor, but using typed predicates instead of closures
+	 * (see NativeListRegex.withPredicates).
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PreparedList<T> withPredicates(
+		List<T> list,
+		List<? extends NativeListRegex.ElementPredicate<? super T>> predicates
+	) {
+		// Elements only ever come from List<T>, so the cast is safe.
+		return new PreparedList<T>(
+			list,
+			predicates.toArray(new NativeListRegex.ElementPredicate[predicates.size()])
+		);
+	}
+
+	/**
+	 * @return
+	 *   the number of elements
+	 */
+	public int size() {
+		return elements.size();
+	}
+
+	public T get(int index) {
+		return elements.get(index);
+	}
+
+	/**
+	 * @return
+	 *   the elements (read-only)
+	 */
+	public List<T> getElements() {
+		return Collections.unmodifiableList(elements);
+	}
+
+	/**
+	 * Replace an element; only the results for the new element are
+	 * computed.
+	 *
+	 * @return
+	 *   the old element
+	 */
+	public T set(int index, T element) {
+		T old = elements.set(index, element);
+		evaluate(index);
+		return old;
+	}
+
+	/**
+	 * Append an element.
+	 */
+	public void add(T element) {
+		int index = elements.size();
+		elements.add(element);
+		if ((index + 1) * words > bits.length) {
+			bits = Arrays.copyOf(bits, 2 * bits.length);
+		}
+		evaluate(index);
+	}
+
+	/**
+	 * Find the first match of a regular expression (see NativeListRegex.find).
+	 *
+	 * @param pattern
+	 *   The regular expression.
+	 *   Use {0}, {1}, ... to refer to the closures to match list items.
+	 * @param groups
+	 *   (out) accepts contents of capturing groups, may be null
+	 * @return
+	 *   the matching part of the list, or null if there is no match
+	 * @throws IllegalArgumentException
+	 *   if the pattern cannot be parsed or refers to a missing closure
+	 */
+	public Collection<T> find(String pattern, List<? extends Collection<T>> groups) {
+		return regex(pattern).find(elements, input, groups, null);
+	}
+
+	public Collection<T> find(String pattern) {
+		return find(pattern, null);
+	}
+
+	/**
+	 * Find all matches of a regular expression (see NativeListRegex.findAll).
+	 */
+	public Collection<? extends Collection<T>> findAll(
+		String pattern,
+		List<? extends List<? extends Collection<T>>> groups
+	) {
+		return regex(pattern).findAll(elements, input, groups, null);
+	}
+
+	public Collection<? extends Collection<T>> findAll(String pattern) {
+		return findAll(pattern, null);
+	}
+
+	/**
+	 * @return
+	 *   start and end of all matches, see NativeListRegex.findAllOffsets
+	 */
+	public int[] findAllOffsets(String pattern) {
+		return regex(pattern).findAllOffsets(elements.size(), input);
+	}
+
+	/**
+	 * @return
+	 *   the number of matches findAll would return
+	 */
+	public int count(String pattern) {
+		return regex(pattern).count(elements.size(), input);
+	}
+
+	/**
+	 * Match the complete list (see NativeListRegex.matches).
+	 */
+	public boolean matches(String pattern, List<? extends Collection<T>> groups) {
+		return regex(pattern).matches(elements, input, groups, null);
+	}
+
+	public boolean matches(String pattern) {
+		return matches(pattern, null);
+	}
+
+	private NativeListRegex<T> regex(String pattern) {
+		NativeListRegex<T> regex = regexes.get(pattern);
+		if (regex == null) {
+			regex = new NativeListRegex<T>(ListPattern.compile(pattern), predicates);
+			regexes.put(pattern, regex);
+		}
+		return regex;
+	}
+
+	private void evaluate(int index) {
+		Object element = elements.get(index);
+		int offset = index * words;
+		Arrays.fill(bits, offset, offset + words, 0L);
+		for (int p = 0; p < predicates.length; p++) {
+			if (predicates[p].test(element)) {
+				bits[offset + (p >>> 6)] |= 1L << p;
+			}
+		}
+	}
+}
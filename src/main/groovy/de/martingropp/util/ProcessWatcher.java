@@ -17,29 +17,76 @@
 
 package de.martingropp.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 /**
  * Run a process, receive its output through listeners,
  * wait for special output lines.
+ * 
+ * The output is read by two threads per process (see setThreadFactory),
+ * or by a shared OutputPump (see setPump).
+ * The waitForLine methods block on a Semaphore without holding any
+ * locks, so they can be called from virtual threads as well.
  */
 public class ProcessWatcher {
 	public static interface OutputListener {
 		void processOutputLine(String line, boolean stderr);
 	}
 	
+	/**
+	 * Receives the output as it is read, without decoding or splitting
+	 * it into lines.
+	 */
+	public static interface RawOutputListener {
+		/**
+		 * @param data
+		 *   the bytes read (between position and limit); only valid
+		 *   during the call, the buffer is reused afterwards
+		 */
+		void processOutput(ByteBuffer data, boolean stderr);
+	}
+	
+	/**
+	 * Receives the output lines in blocks, see addStdoutBatchListener.
+	 */
+	public static interface BatchOutputListener {
+		/**
+		 * @param lines
+		 *   the lines in order (at least one); the list belongs to
+		 *   the listener
+		 */
+		void processOutputLines(List<String> lines, boolean stderr);
+	}
+	
 	public static interface ExitListener {
 		void processTerminated(int exitCode);
 	}
@@ -49,118 +96,451 @@ public class ProcessWatcher {
 	public Process process = null;
 	private Writer writer = null;
 	
-	private List<OutputListener> stdoutListeners = new ArrayList<>();
-	private List<OutputListener> stderrListeners = new ArrayList<>();
-	private List<ExitListener> exitListeners = new ArrayList<>();
+	// listeners may be added while the output is being read
+	private List<OutputListener> stdoutListeners = new CopyOnWriteArrayList<>();
+	private List<OutputListener> stderrListeners = new CopyOnWriteArrayList<>();
+	private List<RawOutputListener> stdoutRawListeners = new CopyOnWriteArrayList<>();
+	private List<RawOutputListener> stderrRawListeners = new CopyOnWriteArrayList<>();
+	private List<LineBatch> stdoutBatches = new CopyOnWriteArrayList<>();
+	private List<LineBatch> stderrBatches = new CopyOnWriteArrayList<>();
+	private List<ExitListener> exitListeners = new CopyOnWriteArrayList<>();
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * Name of the system property that makes virtual threads the default
+	 * for reading the output (if the JVM supports them).
+	 */
+	public static final String VIRTUAL_THREADS_PROPERTY = "de.martingropp.util.ProcessWatcher.virtualThreads";
+	
+	/** reads the output instead of Watchers, or null */
+	private OutputPump pump = null;
 	
-	private WatcherThread stdoutWatcher;
-	private WatcherThread stderrWatcher;
+	/** creates the Watcher threads, or null for plain threads */
+	private ThreadFactory threadFactory = defaultThreadFactory();
 	
-	private static class TriggerLine {
-		public Pattern pattern;
-		public Semaphore semaphore;
+	/** counted down when stdout and stderr have been read completely */
+	private CountDownLatch finished = null;
+	
+	private LineTriggerIndex triggerLinesStdout = new LineTriggerIndex();
+	private LineTriggerIndex triggerLinesStderr = new LineTriggerIndex();
+	
+	/** schedules the flushes of batches whose latency is up (created when needed) */
+	private static ScheduledExecutorService batchTimer = null;
+	
+	/** delivers the batches flushed by batchTimer (created when needed) */
+	private static ExecutorService batchDelivery = null;
+	
+	private static synchronized ScheduledExecutorService batchTimer() {
+		if (batchTimer == null) {
+			ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("ProcessWatcher-batch-timer"));
+			timer.setRemoveOnCancelPolicy(true);
+			batchTimer = timer;
+		}
+		return batchTimer;
+	}
+	
+	private static synchronized ExecutorService batchDelivery() {
+		if (batchDelivery == null) {
+			batchDelivery = Executors.newCachedThreadPool(daemonThreadFactory("ProcessWatcher-batches"));
+		}
+		return batchDelivery;
+	}
+	
+	private static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	/**
+	 * Collects the lines for one BatchOutputListener.
+	 * Lines are added by the reading thread. A full batch is delivered
+	 * right away on that thread, others when maxLatency is up (on a pool
+	 * thread, so slow listeners don't hold up the timer) or at the end
+	 * of the output.
+	 * Flushed batches are queued and delivered one at a time, in order;
+	 * the listener is never called while holding the lock on lines.
+	 */
+	private static class LineBatch {
+		private final BatchOutputListener listener;
+		private final boolean stderr;
+		private final int maxLines;
+		/** in nanoseconds, 0: deliver the lines of each read at once */
+		private final long maxLatency;
+		
+		/** guards lines, generation and pending */
+		private final Object lock = new Object();
+		private List<String> lines;
+		/** counts the batches, so a late timer doesn't flush the next one */
+		private long generation = 0;
+		/** flushed batches not delivered yet */
+		private final Queue<List<String>> pending = new ArrayDeque<>();
 		
-		// when the semaphore is released:
-		// matched is true if the pattern matched and false if
-		// the process exited.
-		// -> no synchronization necessary.
-		public boolean matched = false;
+		/** held while delivering, keeps the batches in order */
+		private final ReentrantLock deliveryLock = new ReentrantLock();
 		
-		public TriggerLine(Pattern pattern, Semaphore semaphore) {
-			this.pattern = pattern;
-			this.semaphore = semaphore;
+		public LineBatch(BatchOutputListener listener, boolean stderr, int maxLines, long maxLatency, TimeUnit unit) {
+			if (maxLines < 1) {
+				throw new IllegalArgumentException("maxLines must be at least 1.");
+			}
+			if (maxLatency < 0) {
+				throw new IllegalArgumentException("maxLatency must not be negative.");
+			}
+			
+			this.listener = listener;
+			this.stderr = stderr;
+			this.maxLines = maxLines;
+			this.maxLatency = unit.toNanos(maxLatency);
+			this.lines = new ArrayList<>(Math.min(maxLines, 1024));
+		}
+		
+		public void add(String line) {
+			boolean full;
+			synchronized (lock) {
+				lines.add(line);
+				full = (lines.size() >= maxLines);
+				if (full) {
+					take();
+				} else if (lines.size() == 1 && maxLatency > 0) {
+					schedule(generation);
+				}
+			}
+			
+			if (full) {
+				deliver();
+			}
+		}
+		
+		/**
+		 * Called after each read.
+		 */
+		public void endOfRead() {
+			if (maxLatency == 0) {
+				flush();
+			}
+		}
+		
+		/**
+		 * Deliver the lines collected so far (on the calling thread).
+		 */
+		public void flush() {
+			synchronized (lock) {
+				take();
+			}
+			deliver();
+		}
+		
+		private void schedule(final long scheduled) {
+			batchTimer().schedule(
+				new Runnable() {
+					@Override
+					public void run() {
+						synchronized (lock) {
+							if (generation != scheduled) {
+								return;
+							}
+							take();
+						}
+						batchDelivery().execute(
+							new Runnable() {
+								@Override
+								public void run() {
+									try {
+										deliver();
+									}
+									catch (RuntimeException e) {
+										// nobody else would see it
+										Thread thread = Thread.currentThread();
+										thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+									}
+								}
+							}
+						);
+					}
+				},
+				maxLatency,
+				TimeUnit.NANOSECONDS
+			);
+		}
+		
+		/**
+		 * Queue the current lines as a batch (holding lock).
+		 */
+		private void take() {
+			if (lines.isEmpty()) {
+				return;
+			}
+			
+			pending.add(lines);
+			lines = new ArrayList<>(Math.min(maxLines, Math.max(16, lines.size())));
+			generation++;
+		}
+		
+		/**
+		 * Pass the queued batches to the listener.
+		 */
+		private void deliver() {
+			deliveryLock.lock();
+			try {
+				while (true) {
+					List<String> batch;
+					synchronized (lock) {
+						batch = pending.poll();
+					}
+					if (batch == null) {
+						break;
+					}
+					listener.processOutputLines(batch, stderr);
+				}
+			}
+			finally {
+				deliveryLock.unlock();
+			}
 		}
 	}
 	
-	private List<TriggerLine> triggerLinesStdout = new LinkedList<>();
-	private List<TriggerLine> triggerLinesStderr = new LinkedList<>();
-	
-	private class WatcherThread extends Thread {
-		private final BufferedReader reader;
+	/**
+	 * Passes the output of stdout or stderr to the raw listeners,
+	 * decodes it, splits it into lines (like BufferedReader.readLine)
+	 * and passes them to the listeners and triggers.
+	 * Decoding is skipped while nobody needs lines.
+	 * Fed by a Watcher or an OutputPump.
+	 */
+	private class OutputSink implements OutputPump.Sink {
 		private final List<OutputListener> listeners;
+		private final List<RawOutputListener> rawListeners;
+		private final List<LineBatch> batches;
 		private final boolean stderr; 
 		private final boolean callExitListeners;
-		private final List<TriggerLine> triggerLines;
+		private final LineTriggerIndex triggerLines;
+		
+		private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		/** bytes not decoded yet (incomplete characters) */
+		private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+		private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		private final StringBuilder line = new StringBuilder();
+		/** the last line ended with '\r', skip a following '\n' */
+		private boolean skipLF = false;
 		
-		public WatcherThread(
-			BufferedReader reader,
+		/** output has been skipped without decoding */
+		private boolean skipped = false;
+		/** the last byte skipped */
+		private byte lastSkipped = '\n';
+		/** the current line started while decoding was skipped */
+		private boolean partialLine = false;
+		
+		/** read-only view of the last buffer passed to write, for the raw listeners */
+		private byte[] rawArray = null;
+		private ByteBuffer rawBuffer = null;
+		
+		public OutputSink(
 			List<OutputListener> listeners,
-			final List<TriggerLine> triggerLines,
+			List<RawOutputListener> rawListeners,
+			List<LineBatch> batches,
+			LineTriggerIndex triggerLines,
 			boolean stderr,
 			boolean callExitListeners
 		) {
-			this.reader = reader;
 			this.listeners = listeners;
+			this.rawListeners = rawListeners;
+			this.batches = batches;
 			this.triggerLines = triggerLines;
 			this.stderr = stderr;
 			this.callExitListeners = callExitListeners;
+		}
+		
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			if (!rawListeners.isEmpty()) {
+				if (buffer != rawArray) {
+					rawArray = buffer;
+					rawBuffer = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+				}
+				for (RawOutputListener listener : rawListeners) {
+					rawBuffer.limit(offset + length);
+					rawBuffer.position(offset);
+					listener.processOutput(rawBuffer, stderr);
+				}
+			}
 			
-			OutputListener listener = new OutputListener() {
-				@Override
-				public void processOutputLine(String line, boolean stderr) {
-					List<Semaphore> semaphores = new ArrayList<>();
-					synchronized (triggerLines) {
-						for (TriggerLine triggerLine : triggerLines) {
-							if (triggerLine.pattern.matcher(line).matches()) {
-								triggerLine.matched = true;
-								semaphores.add(triggerLine.semaphore);
-							}
-						}
-					}
-					
-					for (Semaphore semaphore : semaphores) {
-						semaphore.release();
-					}
+			if (listeners.isEmpty() && batches.isEmpty() && !triggerLines.isUsed()) {
+				if (length > 0) {
+					skipped = true;
+					lastSkipped = buffer[offset + length - 1];
 				}
-			};
+				return;
+			}
+			
+			if (skipped) {
+				// start decoding at the next line
+				// (assuming an ASCII compatible charset, otherwise
+				// the first line is lost)
+				skipped = false;
+				decoder.reset();
+				bytes.clear();
+				line.setLength(0);
+				skipLF = (lastSkipped == '\r');
+				partialLine = (lastSkipped != '\n' && lastSkipped != '\r');
+			}
+			
+			while (length > 0) {
+				int count = Math.min(length, bytes.remaining());
+				bytes.put(buffer, offset, count);
+				offset += count;
+				length -= count;
+				
+				bytes.flip();
+				decode(false);
+				bytes.compact();
+			}
 			
-			if (stderr) {
-				addStderrListener(listener);
-			} else {
-				addStdoutListener(listener);
+			for (LineBatch batch : batches) {
+				batch.endOfRead();
 			}
 		}
 		
 		@Override
-		public void run() {
+		public void close(boolean eof) {
 			try {
-				String line;
-				while ((line = reader.readLine()) != null) {
-					for (OutputListener listener : listeners) {
-						listener.processOutputLine(line, stderr);
-					}
+				if (eof) {
+					end();
+				} else {
+					flushBatches();
 				}
-				
-				try {
-					process.waitFor();
+			}
+			finally {
+				finished.countDown();
+			}
+		}
+		
+		private void end() {
+			if (!skipped) {
+				bytes.flip();
+				decode(true);
+				decoder.flush(chars);
+				chars.flip();
+				processChars();
+				if (line.length() > 0) {
+					processLine();
 				}
-				catch (InterruptedException e) {
-					e.printStackTrace();
+			}
+			flushBatches();
+			
+			try {
+				process.waitFor();
+			}
+			catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			finally {
+				// nothing can match anymore
+				for (LineTriggerIndex.Trigger trigger : triggerLines.close()) {
+					trigger.semaphore.release();
 				}
-				finally {
-					List<Semaphore> semaphores = new ArrayList<>();
-					synchronized (triggerLines) {
-						for (TriggerLine triggerLine: triggerLines) {
-							if (triggerLine.pattern.matcher(line).matches()) {
-								triggerLine.matched = false;
-							}
-						}
-					}
-					
-					for (Semaphore semaphore : semaphores) {
-						semaphore.release();
+				
+				int exitCode = process.exitValue();
+				if (callExitListeners) {
+					for (ExitListener listener : exitListeners) {
+						listener.processTerminated(exitCode);
 					}
-					
-					int exitCode = process.exitValue();
-					if (callExitListeners) {
-						for (ExitListener listener : exitListeners) {
-							listener.processTerminated(exitCode);
-						}
+				}
+			}
+		}
+		
+		private void flushBatches() {
+			for (LineBatch batch : batches) {
+				batch.flush();
+			}
+		}
+		
+		private void decode(boolean endOfInput) {
+			while (true) {
+				CoderResult result = decoder.decode(bytes, chars, endOfInput);
+				chars.flip();
+				processChars();
+				chars.clear();
+				if (!result.isOverflow()) {
+					break;
+				}
+			}
+		}
+		
+		private void processChars() {
+			while (chars.hasRemaining()) {
+				char c = chars.get();
+				if (skipLF) {
+					skipLF = false;
+					if (c == '\n') {
+						continue;
 					}
 				}
+				
+				if (c == '\n' || c == '\r') {
+					skipLF = (c == '\r');
+					processLine();
+				} else {
+					line.append(c);
+				}
+			}
+		}
+		
+		private void processLine() {
+			String text = line.toString();
+			line.setLength(0);
+			if (partialLine) {
+				partialLine = false;
+				return;
+			}
+			
+			for (OutputListener listener : listeners) {
+				listener.processOutputLine(text, stderr);
+			}
+			for (LineBatch batch : batches) {
+				batch.add(text);
+			}
+			
+			for (LineTriggerIndex.Trigger trigger : triggerLines.match(text)) {
+				trigger.matched = true;
+				trigger.semaphore.release();
+			}
+		}
+	}
+	
+	private static class Watcher implements Runnable {
+		private final InputStream stream;
+		private final OutputSink sink;
+		
+		public Watcher(InputStream stream, OutputSink sink) {
+			this.stream = stream;
+			this.sink = sink;
+		}
+		
+		@Override
+		public void run() {
+			boolean eof = false;
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int count;
+				while ((count = stream.read(buffer)) >= 0) {
+					sink.write(buffer, 0, count);
+				}
+				eof = true;
 			}
 			catch (IOException e) {
 			}
+			finally {
+				sink.close(eof);
+			}
 		}
 	}
 	
@@ -171,24 +551,17 @@ public class ProcessWatcher {
 	
 	public void start() throws IOException {
 		process = processBuilder.start();
+		finished = new CountDownLatch(2);
 		
-		stdoutWatcher = new WatcherThread(
-			new BufferedReader(new InputStreamReader(process.getInputStream())),
-			stdoutListeners,
-			triggerLinesStdout,
-			false,
-			false
-		);
-		stdoutWatcher.start();
-		
-		stderrWatcher = new WatcherThread(
-			new BufferedReader(new InputStreamReader(process.getErrorStream())),
-			stderrListeners,
-			triggerLinesStderr,
-			true,
-			true
-		);
-		stderrWatcher.start();
+		OutputSink stdoutSink = new OutputSink(stdoutListeners, stdoutRawListeners, stdoutBatches, triggerLinesStdout, false, false);
+		OutputSink stderrSink = new OutputSink(stderrListeners, stderrRawListeners, stderrBatches, triggerLinesStderr, true, true);
+		if (pump != null) {
+			pump.register(process.getInputStream(), process, stdoutSink);
+			pump.register(process.getErrorStream(), process, stderrSink);
+		} else {
+			newThread(new Watcher(process.getInputStream(), stdoutSink)).start();
+			newThread(new Watcher(process.getErrorStream(), stderrSink)).start();
+		}
 		
 		writer = new OutputStreamWriter(process.getOutputStream());
 		
@@ -231,6 +604,75 @@ public class ProcessWatcher {
 		);
 	}
 	
+	/**
+	 * Read the output of the process with pump instead of two
+	 * threads of its own (has to be called before start).
+	 * 
+	 * @param pump
+	 *   the pump, or null for own threads (the default)
+	 */
+	public void setPump(OutputPump pump) {
+		this.pump = pump;
+	}
+	
+	public OutputPump getPump() {
+		return pump;
+	}
+	
+	/**
+	 * Set the factory for the two threads reading the output
+	 * (has to be called before start), e.g. virtualThreadFactory().
+	 * 
+	 * @param threadFactory
+	 *   the factory, or null for plain platform threads (the default,
+	 *   unless VIRTUAL_THREADS_PROPERTY is set)
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+	
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+	
+	/**
+	 * @return
+	 *   a ThreadFactory creating virtual threads
+	 * @throws UnsupportedOperationException
+	 *   if the JVM doesn't have virtual threads (before Java 21)
+	 */
+	public static ThreadFactory virtualThreadFactory() {
+		// reflection, we're compiled for Java 7
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		}
+		catch (NoSuchMethodException | ClassNotFoundException e) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", e);
+		}
+		catch (IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Can't create virtual threads.", e);
+		}
+	}
+	
+	private static ThreadFactory defaultThreadFactory() {
+		if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+			try {
+				return virtualThreadFactory();
+			}
+			catch (UnsupportedOperationException e) {
+				// platform threads, then
+			}
+		}
+		
+		return null;
+	}
+	
+	private Thread newThread(Runnable runnable) {
+		return (threadFactory == null) ? new Thread(runnable) : threadFactory.newThread(runnable);
+	}
+	
 	public void addStdoutListener(OutputListener listener) {
 		stdoutListeners.add(listener);
 	}
@@ -239,6 +681,54 @@ public class ProcessWatcher {
 		stderrListeners.add(listener);
 	}
 	
+	/**
+	 * Receive the bytes of stdout as they are read.
+	 * If there are only raw listeners (and no waitForLine calls),
+	 * the output isn't decoded at all; line listeners and waitForLine
+	 * calls added later start with the next complete line.
+	 */
+	public void addStdoutRawListener(RawOutputListener listener) {
+		stdoutRawListeners.add(listener);
+	}
+	
+	public void addStderrRawListener(RawOutputListener listener) {
+		stderrRawListeners.add(listener);
+	}
+	
+	public void addUniversalRawListener(RawOutputListener listener) {
+		stdoutRawListeners.add(listener);
+		stderrRawListeners.add(listener);
+	}
+	
+	/**
+	 * Receive the lines of stdout in blocks instead of one call per line,
+	 * for output with lots of lines.
+	 * A block is delivered when it has maxLines lines, or maxLatency
+	 * after its first line (then on a pool thread shared by all
+	 * watchers; exceptions thrown by the listener there go to the
+	 * thread's uncaught exception handler), or at the end of the output
+	 * (before the exit listeners are called).
+	 * Blocks are delivered in order, one at a time.
+	 * 
+	 * @param maxLines
+	 *   maximum number of lines per call
+	 * @param maxLatency
+	 *   maximum time a line is held back; 0 delivers the lines
+	 *   of each read at once (no timer)
+	 */
+	public void addStdoutBatchListener(BatchOutputListener listener, int maxLines, long maxLatency, TimeUnit unit) {
+		stdoutBatches.add(new LineBatch(listener, false, maxLines, maxLatency, unit));
+	}
+	
+	public void addStderrBatchListener(BatchOutputListener listener, int maxLines, long maxLatency, TimeUnit unit) {
+		stderrBatches.add(new LineBatch(listener, true, maxLines, maxLatency, unit));
+	}
+	
+	public void addUniversalBatchListener(BatchOutputListener listener, int maxLines, long maxLatency, TimeUnit unit) {
+		addStdoutBatchListener(listener, maxLines, maxLatency, unit);
+		addStderrBatchListener(listener, maxLines, maxLatency, unit);
+	}
+	
 	public void addExitListener(ExitListener listener) {
 		exitListeners.add(listener);
 	}
@@ -310,49 +800,46 @@ public class ProcessWatcher {
 		}
 	}
 	
-	private void waitForLine(Pattern pattern, List<TriggerLine> triggerLines) throws InterruptedException {
-		Semaphore semaphore = new Semaphore(0);
-		TriggerLine triggerLine = new TriggerLine(pattern, semaphore);
-		synchronized (triggerLines) {
-			if (!isActive()) {
-				throw new InterruptedException("No match, process exited.");
-			}
-			
-			triggerLines.add(triggerLine);
+	/**
+	 * Wait until a line matching trigger has been read
+	 * (lines are checked through triggerLines, see LineTriggerIndex).
+	 */
+	private void waitForLine(
+		LineTriggerIndex.Trigger trigger,
+		LineTriggerIndex triggerLines
+	) throws InterruptedException {
+		// The output may still be read after the process has exited,
+		// so only the end of the output counts.
+		if (process == null || !triggerLines.add(trigger)) {
+			throw new InterruptedException("No match, process exited.");
 		}
 		
 		try {
-			semaphore.acquire();
+			trigger.semaphore.acquire();
 		}
 		finally {
-			triggerLines.remove(triggerLine);
+			triggerLines.remove(trigger);
 		}
 		
-		if (!triggerLine.matched) {
+		if (!trigger.matched) {
 			throw new InterruptedException("No match, process exited.");
 		}
 	}
 	
 	public void waitForLineStdout(Pattern pattern) throws InterruptedException {
-		waitForLine(pattern, triggerLinesStdout);
+		waitForLine(new LineTriggerIndex.Trigger(pattern), triggerLinesStdout);
 	}
 	
 	public void waitForLineStderr(Pattern pattern) throws InterruptedException {
-		waitForLine(pattern, triggerLinesStderr);
+		waitForLine(new LineTriggerIndex.Trigger(pattern), triggerLinesStderr);
 	}
 	
 	public void waitForLineStdout(String line) throws InterruptedException {
-		waitForLine(
-			Pattern.compile(String.format("^%s$", Pattern.quote(line))),
-			triggerLinesStdout
-		);
+		waitForLine(new LineTriggerIndex.Trigger(line), triggerLinesStdout);
 	}
 	
 	public void waitForLineStderr(String line) throws InterruptedException {
-		waitForLine(
-			Pattern.compile(String.format("^%s$", Pattern.quote(line))),
-			triggerLinesStderr
-		);
+		waitForLine(new LineTriggerIndex.Trigger(line), triggerLinesStderr);
 	}
 	
 	/**
@@ -366,17 +853,14 @@ public class ProcessWatcher {
 	}
 	
 	/**
-	 * Wait for the watcher threads.
+	 * Wait until stdout and stderr have been read completely
+	 * (and the listeners have been called).
 	 *  
 	 * @throws InterruptedException
 	 */
 	public void join() throws InterruptedException {
-		if (stdoutWatcher != null) {
-			stdoutWatcher.join();
-		}
-		
-		if (stderrWatcher != null) {
-			stderrWatcher.join();
+		if (finished != null) {
+			finished.await();
 		}
 	}
 	
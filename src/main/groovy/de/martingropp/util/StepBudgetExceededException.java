@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+/**
+ * Thrown when matching a pattern takes more steps than allowed
+ * (see CompiledListRegex.setStepBudget).
+ *
+ * @author mgropp
+ */
+public class StepBudgetExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final long budget;
+
+	public StepBudgetExceededException(String pattern, long budget, int length) {
+		super(
+			"Matching the pattern " + pattern + " on a list of " + length + " elements " +
+			"exceeded the budget of " + budget + " steps."
+		);
+		this.budget = budget;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+}
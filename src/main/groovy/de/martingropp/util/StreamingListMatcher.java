@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds all matches of a NativeListRegex in a stream of elements
+ * that are added one at a time, e.g. the output lines of a process:
+ *
+ * StreamingListMatcher<String> matcher = regex.streamingMatcher(
+ *   { long start, List<String> lines -> println("match at ${start}: ${lines}") }
+ *     as StreamingListMatcher.MatchListener
+ * )
+ * processWatcher.addStdoutListener(
+ *   { String line, boolean stderr -> matcher.add(line) } as ProcessWatcher.OutputListener
+ * )
+ * processWatcher.addExitListener({ int exitCode -> matcher.finish() } as ProcessWatcher.ExitListener)
+ *
+ * The matches are the same findAll would return for the complete list.
+ * Each match is reported as soon as it can't change anymore,
+ * which may be a few elements after its end (e.g. "{0}+" has to see an
+ * element not matching {0}).
+ *
+ * Only the elements that can still be part of a match are kept.
+ * (Patterns like ".*" keep everything, of course.)
+ * Lookarounds delay matching by the number of elements they examine
+ * ahead, and keep as many elements as they examine behind.
+ *
+ * add and finish are synchronized, so elements may come from different
+ * threads (e.g. stdout and stderr of a process).
+ *
+ * @author mgropp
+ */
+public class StreamingListMatcher<T> {
+	public static interface MatchListener<T> {
+		/**
+		 * @param start
+		 *   position of the first matching element in the stream
+		 * @param elements
+		 *   the matching elements
+		 */
+		void match(long start, List<T> elements);
+	}
+
+	/** minimum number of discarded elements before the buffer is moved */
+	private static final int MIN_DISCARD = 1024;
+
+	private final MatchListener<T> listener;
+	private final NativeListRegex.ElementPredicate<Object>[] predicates;
+	private final int words;
+	private final ListVM vm;
+	private final Buffer buffer;
+
+	/** see ListPattern.lookahead and lookbehind */
+	private final int lookahead;
+	private final int lookbehind;
+
+	/** stream position of the first buffered element */
+	private long base = 0L;
+
+	/** next position (in the buffer) to run the VM on */
+	private int pos = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * The buffered elements and their predicate results
+	 * (evaluated on demand).
+	 */
+	private class Buffer implements ListVM.Input {
+		Object[] elements = new Object[64];
+		long[] known = new long[64 * words];
+		long[] values = new long[64 * words];
+		/** index of the first element */
+		int head = 0;
+		int size = 0;
+
+		void add(Object element) {
+			if (head + size == elements.length) {
+				if (head >= elements.length / 2) {
+					// move to the front
+					System.arraycopy(elements, head, elements, 0, size);
+					System.arraycopy(known, head*words, known, 0, size*words);
+					System.arraycopy(values, head*words, values, 0, size*words);
+					Arrays.fill(elements, size, head + size, null);
+					Arrays.fill(known, size*words, (head + size)*words, 0L);
+					Arrays.fill(values, size*words, (head + size)*words, 0L);
+					head = 0;
+				} else {
+					elements = Arrays.copyOf(elements, 2*elements.length);
+					known = Arrays.copyOf(known, 2*known.length);
+					values = Arrays.copyOf(values, 2*values.length);
+				}
+			}
+
+			elements[head + size] = element;
+			size++;
+		}
+
+		void discard(int count) {
+			Arrays.fill(elements, head, head + count, null);
+			Arrays.fill(known, head*words, (head + count)*words, 0L);
+			Arrays.fill(values, head*words, (head + count)*words, 0L);
+			head += count;
+			size -= count;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<T> copy(int start, int end) {
+			List<T> result = new ArrayList<>(end - start);
+			for (int i = start; i < end; i++) {
+				result.add((T)elements[head + i]);
+			}
+			return result;
+		}
+
+		@Override
+		public boolean test(int index, int predicate) {
+			int offset = (head + index)*words + (predicate >>> 6);
+			long bit = 1L << predicate;
+			if ((known[offset] & bit) == 0) {
+				known[offset] |= bit;
+				if (predicates[predicate].test(elements[head + index])) {
+					values[offset] |= bit;
+				}
+			}
+
+			return (values[offset] & bit) != 0;
+		}
+	}
+
+	StreamingListMatcher(
+		ListPattern pattern,
+		NativeListRegex.ElementPredicate<Object>[] predicates,
+		MatchListener<T> listener
+	) {
+		this.listener = listener;
+		this.predicates = predicates;
+		this.words = Math.max(1, (predicates.length + 63) >>> 6);
+		this.buffer = new Buffer();
+		this.vm = new ListVM(pattern, false);
+		this.lookahead = pattern.lookahead;
+		this.lookbehind = pattern.lookbehind;
+		vm.length = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Add the next element of the stream.
+	 * Calls the listener for all matches completed by this element.
+	 */
+	public synchronized void add(T element) {
+		if (finished) {
+			throw new IllegalStateException("Stream already finished.");
+		}
+
+		buffer.add(element);
+		run();
+	}
+
+	/**
+	 * Signal the end of the stream.
+	 * Calls the listener for all remaining matches.
+	 */
+	public synchronized void finish() {
+		if (finished) {
+			return;
+		}
+
+		finished = true;
+		vm.length = buffer.size;
+		run();
+	}
+
+	/**
+	 * @return
+	 *   the number of elements currently kept
+	 */
+	public synchronized int getBufferedCount() {
+		return buffer.size;
+	}
+
+	private void run() {
+		while (true) {
+			if (vm.matched && !vm.hasThreads()) {
+				// the match is final
+				int start = vm.matchCaps[0];
+				int end = vm.matchCaps[1];
+				listener.match(base + start, buffer.copy(start, end));
+
+				pos = ListVM.next(vm.matchCaps);
+				vm.clear();
+				discard(Math.min(pos, buffer.size));
+				continue;
+			}
+
+			// Running the VM on pos requires knowing whether pos and
+			// pos+1 are the end of the stream ($), and lookaheads from
+			// pos+1 need their elements too.
+			if (
+				finished ?
+				(pos > vm.length) :
+				(lookahead < 0 || (long)pos + 1 + lookahead >= buffer.size)
+			) {
+				break;
+			}
+
+			if (!vm.matched) {
+				vm.addStart(pos, buffer);
+			}
+
+			if (!vm.hasThreads()) {
+				vm.clear();
+				pos++;
+				discard(Math.min(pos, buffer.size));
+				continue;
+			}
+
+			vm.step(pos, buffer);
+			pos++;
+
+			if (pos % MIN_DISCARD == 0) {
+				// discard what can't be part of a match anymore
+				int keep = Math.min(pos, vm.minStart());
+				if (vm.matched) {
+					keep = Math.min(keep, vm.matchCaps[0]);
+				}
+				discard(keep);
+			}
+		}
+	}
+
+	/**
+	 * Discard the first count buffered elements if that is worth it.
+	 */
+	private void discard(int count) {
+		if (lookbehind < 0) {
+			return;
+		}
+		// lookbehinds from pos need the elements before it
+		count = Math.min(count, pos - lookbehind);
+		if (count <= 0) {
+			return;
+		}
+
+		if (count < MIN_DISCARD && count < buffer.size) {
+			return;
+		}
+
+		buffer.discard(count);
+		base += count;
+		pos -= count;
+		vm.rebase(count);
+	}
+}
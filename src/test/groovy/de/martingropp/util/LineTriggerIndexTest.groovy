@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util;
+
+import java.util.concurrent.TimeUnit
+import java.util.regex.Pattern
+
+import spock.lang.Specification
+
+/**
+ * (Not in the test package, LineTriggerIndex is package-private.)
+ */
+class LineTriggerIndexTest extends Specification {
+	LineTriggerIndex index = new LineTriggerIndex();
+
+	def testLiteralTriggers() {
+		setup:
+			def ready = new LineTriggerIndex.Trigger("ready");
+			def ready2 = new LineTriggerIndex.Trigger("ready");
+			def literal = new LineTriggerIndex.Trigger(Pattern.compile("a+b", Pattern.LITERAL));
+			def plain = new LineTriggerIndex.Trigger(Pattern.compile("done"));
+		when:
+			[ ready, ready2, literal, plain ].each { index.add(it) };
+		then:
+			index.match("not ready").isEmpty();
+			index.match("ready").toSet() == [ ready, ready2 ].toSet();
+			index.match("ready").isEmpty();
+			index.match("aab").isEmpty();
+			index.match("a+b") == [ literal ];
+			index.match("done") == [ plain ];
+			// literal patterns don't end up in the alternation
+			index.combined == null;
+	}
+
+	def testRegexTriggers() {
+		setup:
+			def port = new LineTriggerIndex.Trigger(Pattern.compile("port=(\\d+)"));
+			def error = new LineTriggerIndex.Trigger(Pattern.compile("error.*", Pattern.CASE_INSENSITIVE));
+			def groups = new LineTriggerIndex.Trigger(Pattern.compile("(a)(b)?c"));
+			def afterGroups = new LineTriggerIndex.Trigger(Pattern.compile("x(y)"));
+			def anyX = new LineTriggerIndex.Trigger(Pattern.compile("x."));
+			def backReference = new LineTriggerIndex.Trigger(Pattern.compile("(a)\\1"));
+			// the flag only applies to the rest of the pattern
+			def inlineFlags = new LineTriggerIndex.Trigger(Pattern.compile("q(?i)r"));
+		when:
+			[ port, error, groups, afterGroups, anyX, backReference, inlineFlags ].each { index.add(it) };
+		then:
+			index.match("port=").isEmpty();
+			index.match("port=80") == [ port ];
+			index.match("port=80").isEmpty();
+			index.match("ERROR: disk full") == [ error ];
+			index.match("ac") == [ groups ];
+			// both match, the one after the first matching alternative is found too
+			index.match("xy") == [ afterGroups, anyX ];
+			index.match("aa") == [ backReference ];
+			index.match("Qr").isEmpty();
+			index.match("qR") == [ inlineFlags ];
+	}
+
+	def testSamePatternTwice() {
+		setup:
+			def first = new LineTriggerIndex.Trigger(Pattern.compile("job \\d+ done"));
+			def second = new LineTriggerIndex.Trigger(Pattern.compile("job \\d+ done"));
+		when:
+			index.add(first);
+			index.add(second);
+		then:
+			index.alternatives.size() == 1;
+			index.match("job 7 done").toSet() == [ first, second ].toSet();
+	}
+
+	def testRemove() {
+		setup:
+			def line = new LineTriggerIndex.Trigger("z");
+			def regex = new LineTriggerIndex.Trigger(Pattern.compile("z+"));
+			def other = new LineTriggerIndex.Trigger(Pattern.compile("y+"));
+			[ line, regex, other ].each { index.add(it) };
+			index.match("nothing");
+			Pattern combined = index.combined;
+		when:
+			index.remove(line);
+			index.remove(regex);
+			index.remove(regex);
+		then:
+			index.match("z").isEmpty();
+			index.match("zz").isEmpty();
+			index.match("yy") == [ other ];
+			// removing doesn't compile the alternation again
+			index.combined.is(combined);
+	}
+
+	def testRebuildAfterAdd() {
+		setup:
+			def a = new LineTriggerIndex.Trigger(Pattern.compile("a+"));
+			def b = new LineTriggerIndex.Trigger(Pattern.compile("b+"));
+		when:
+			index.add(a);
+			index.match("b");
+			index.add(b);
+		then:
+			index.match("bb") == [ b ];
+			index.match("aa") == [ a ];
+	}
+
+	def testClose() {
+		setup:
+			def line = new LineTriggerIndex.Trigger("ready");
+			def regex = new LineTriggerIndex.Trigger(Pattern.compile("port=\\d+"));
+			def separate = new LineTriggerIndex.Trigger(Pattern.compile("(a)\\1"));
+			List<LineTriggerIndex.Trigger> triggers = [ line, regex, separate ];
+			triggers.each { index.add(it) };
+			List<Boolean> woken = [].asSynchronized();
+			List<Thread> waiters = triggers.collect { trigger ->
+				Thread.start {
+					if (trigger.semaphore.tryAcquire(10, TimeUnit.SECONDS)) {
+						woken << trigger.matched;
+					}
+				}
+			};
+		when:
+			List<LineTriggerIndex.Trigger> closed = index.close();
+			closed.each { it.semaphore.release() };
+			waiters.each { it.join() };
+		then:
+			closed.toSet() == triggers.toSet();
+			woken == [ false ] * 3;
+			!index.add(new LineTriggerIndex.Trigger("ready"));
+			index.match("ready").isEmpty();
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util.test;
+
+import spock.lang.Specification
+import de.martingropp.util.CompiledListRegex;
+import de.martingropp.util.ListRegex;
+import de.martingropp.util.StepBudgetExceededException;
+
+class ListRegexTest extends Specification {
+	static final List<Closure> closures = [
+		{ it == 0 || it == 2 || it == 3 },
+		{ it == 0 || it == 2 },
+		{ it == 1 },
+		{ it == 4 }
+	];
+
+	def testFind() {
+		expect:
+			ListRegex.find(pattern, closures, [ 0, 1, 2, 3, 4 ]) == result;
+		where:
+			pattern          | result
+			"{0}.{0}"        | [ 0, 1, 2 ]
+			"{0}.{3}"        | [ 2, 3, 4 ]
+			"{1}{0}{3}"      | [ 2, 3, 4 ]
+			"{2}+({0}|{3})+" | [ 1, 2, 3, 4 ]
+			"{3}{3}"         | null
+	}
+
+	def testFindAll() {
+		expect:
+			ListRegex.findAll(pattern, closures, [ 0, 1, 2, 3, 4 ]) == result;
+		where:
+			pattern | result
+			"{0}"   | [ [ 0 ], [ 2 ], [ 3 ] ]
+			"{1}"   | [ [ 0 ], [ 2 ] ]
+			"{0}."  | [ [ 0, 1 ], [ 2, 3 ] ]
+	}
+
+	def testMatchesGroups() {
+		setup:
+			List groups = [];
+		expect:
+			ListRegex.matches("({1}{2})({0}*{3})", closures, [ 0, 1, 2, 3, 4 ], groups);
+			groups == [ [ 0, 1, 2, 3, 4 ], [ 0, 1 ], [ 2, 3, 4 ] ];
+			!ListRegex.matches("{1}{2}{0}", closures, [ 0, 1, 2, 3, 4 ]);
+	}
+
+	def testNamedGroups() {
+		setup:
+			Map named = [:];
+			List namedAll = [];
+		expect:
+			ListRegex.find("(?<first>{1})(?:{2})(?<rest>{0}*{3})", closures, [ 0, 1, 2, 3, 4 ], null, named) == [ 0, 1, 2, 3, 4 ];
+			named == [ first: [ 0 ], rest: [ 2, 3, 4 ] ];
+			ListRegex.findAll("(?<a>{0})(?<b>{2})?", closures, [ 0, 1, 2, 3 ], null, namedAll) == [ [ 0, 1 ], [ 2 ], [ 3 ] ];
+			namedAll == [ [ a: [ 0 ], b: [ 1 ] ], [ a: [ 2 ], b: null ], [ a: [ 3 ], b: null ] ];
+	}
+
+	def testReplaceAll() {
+		expect:
+			ListRegex.replaceAll("{1}{2}", closures, [ 0, 1, 2, 3, 4 ], { [ 'x' ] }) == [ 'x', 2, 3, 4 ];
+			ListRegex.replaceAll("({0})({3})", closures, [ 0, 1, 2, 3, 4 ], { List match, List groups -> groups[2] + groups[1] }) == [ 0, 1, 2, 4, 3 ];
+			ListRegex.replaceAll("{0}", closures, [ 0, 1, 2, 3, 4 ], { null }) == [ 1, 4 ];
+			ListRegex.replaceAll("{2}*", closures, [ 0, 1 ], { [ '-' ] }) == [ '-', 0, '-', '-' ];
+	}
+
+	def testSplit() {
+		expect:
+			ListRegex.split(pattern, closures, [ 0, 1, 2, 3, 4 ]) == result;
+		where:
+			pattern | result
+			"{2}"   | [ [ 0 ], [ 2, 3, 4 ] ]
+			"{0}"   | [ [], [ 1 ], [], [ 4 ] ]
+			"{3}"   | [ [ 0, 1, 2, 3 ], [] ]
+			"{2}*"  | [ [ 0 ], [], [ 2 ], [ 3 ], [ 4 ], [] ]
+			"{3}{3}" | [ [ 0, 1, 2, 3, 4 ] ]
+	}
+
+	def testClosureNeverMatching() {
+		expect:
+			ListRegex.find("{0}{3}", closures, [ 0, 1, 2, 3 ]) == null;
+			ListRegex.findAll("{0}{3}?", closures, [ 0, 1, 2, 3 ]) == [ [ 0 ], [ 2 ], [ 3 ] ];
+	}
+
+	def testCompiledReuse() {
+		setup:
+			CompiledListRegex regex = ListRegex.compile("{0}{1}+", [ { it.startsWith("A") }, { it.length() == 4 } ]);
+		expect:
+			regex.findAll([ "Ab", "abcd", "x", "Abcd", "Abcd" ]) == [ [ "Ab", "abcd" ], [ "Abcd", "Abcd" ] ];
+			regex.findAll([ "x", "A", "efgh", "ijkl" ]) == [ [ "A", "efgh", "ijkl" ] ];
+			regex.find([ "Ab", "abc" ]) == null;
+			regex.matches([ "Ab", "abcd" ]);
+	}
+
+	def testStepBudget() {
+		setup:
+			// exponential backtracking: 0 matches {0} and {1}, nothing matches {3}
+			CompiledListRegex regex = ListRegex.compile("({0}|{1})*{3}", closures);
+			regex.setStepBudget(100000);
+		when:
+			regex.find([ 0 ] * 40);
+		then:
+			thrown(StepBudgetExceededException);
+		expect:
+			regex.find([ 0, 0, 4 ]) == [ 0, 0, 4 ];
+			ListRegex.compileNative("({0}|{1})*{3}", closures).find([ 0 ] * 40) == null;
+	}
+
+	def testCompiledManyCombinations() {
+		setup:
+			List<Closure> bits = (0..<8).collect { int bit -> { int x -> ((x >> bit) & 1) == 1 } };
+			CompiledListRegex regex = ListRegex.compile("{7}{0}", bits);
+		when:
+			List<Collection> result = [];
+			for (int offset = 0; offset < 256; offset += 16) {
+				result.addAll(regex.findAll((offset..<(offset + 16)) as List));
+			}
+		then:
+			result == (128..<256).collate(2).findAll { it[1] % 2 == 1 };
+	}
+}
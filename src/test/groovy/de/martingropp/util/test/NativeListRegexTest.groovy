@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util.test;
+
+import java.util.concurrent.ForkJoinPool
+
+import spock.lang.Specification
+import de.martingropp.util.DoubleListRegex;
+import de.martingropp.util.IncrementalListMatcher;
+import de.martingropp.util.IntListRegex;
+import de.martingropp.util.ListMatchVisitor;
+import de.martingropp.util.ListRegex;
+import de.martingropp.util.LongListRegex;
+import de.martingropp.util.NativeListRegex;
+import de.martingropp.util.NativeListRegexSet;
+import de.martingropp.util.PreparedList;
+import de.martingropp.util.StreamingListMatcher;
+
+class NativeListRegexTest extends Specification {
+	static final List<Closure> closures = [
+		{ it == 0 || it == 2 || it == 3 },
+		{ it == 0 || it == 2 },
+		{ it == 1 },
+		{ it == 4 }
+	];
+
+	static final List<String> patterns = [
+		"{0}.{0}", "{0}.{3}", "{1}{0}{3}", "{0}+{3}", "{2}+({0}|{3})+",
+		"{0}", "{1}", "{0}.", "{1}{2}{0}*{3}", "({1}{2})(({0})({0}))",
+		"({0}).", "({1}{2})({0}*{3})", "{0}*", "({0}|{1})*?{3}", "({0}??)({2}|{0})",
+		"^{0}", '{0}$', "{2}'{'1,3}", "(?:{0}{1}?)+", "(({0})|({2}))+", "{3}?", "{0}'{'0}",
+		"(?<a>{0})(?:(?<b>{1})|{2})*"
+	];
+
+	static final List<String> lookaroundPatterns = [
+		"{0}(?!{1})", "(?={0}{2}){0}+", "(?<={1}){0}", '(?<!{2}.)({0})(?={3}|$)', "(?<=^{0}'{'0,2}){3}",
+		"[{1}{2}]+(?={0}{0})", "(?<=(?!{1}){0}).", "(?!.'{'0,3}{3}){0}"
+	];
+
+	def testSameAsListRegex() {
+		setup:
+			Random random = new Random(42);
+		expect:
+			for (int i = 0; i < 50; i++) {
+				List<Integer> list = (0..<random.nextInt(12)).collect { random.nextInt(5) };
+				NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+
+				List groups = [];
+				List nativeGroups = [];
+				assert regex.find(list, nativeGroups) == ListRegex.find(pattern, closures, list, groups);
+				assert nativeGroups == groups;
+
+				assert regex.findAll(list, nativeGroups) == ListRegex.findAll(pattern, closures, list, groups);
+				assert regex.count(list) == ListRegex.count(pattern, closures, list);
+				assert regex.containsMatch(list) == ListRegex.containsMatch(pattern, closures, list);
+				assert nativeGroups == groups;
+
+				assert regex.matches(list, nativeGroups) == ListRegex.matches(pattern, closures, list, groups);
+				assert nativeGroups == groups;
+			}
+		where:
+			pattern << patterns + lookaroundPatterns;
+	}
+
+	def testFindLast() {
+		setup:
+			Random random = new Random(42);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+		expect:
+			(0..<50).every {
+				List<Integer> list = (0..<random.nextInt(16)).collect { random.nextInt(5) };
+				// without ^, a match starting at s is a match at 0 in the rest of the list
+				Integer start = (list.size()..0).find { int s ->
+					(s == 0 || !pattern.contains("^")) &&
+						(regex.findAllOffsets(list.subList(s, list.size())) as List).take(1) == [ 0 ]
+				};
+				List<List<Integer>> groups = [];
+				List<List<Integer>> expectedGroups = [];
+				Collection<Integer> last = regex.findLast(list, groups);
+				if (start == null) {
+					assert last == null;
+				} else {
+					assert last == regex.find(list.subList(start, list.size()), expectedGroups);
+					assert groups == expectedGroups;
+				}
+				true
+			};
+		where:
+			pattern << patterns + lookaroundPatterns.findAll { !it.contains("(?<") };
+	}
+
+	def testLazySameAsEager() {
+		setup:
+			Random random = new Random(23);
+			NativeListRegex eager = ListRegex.compileNative(pattern, closures);
+			NativeListRegex lazy = ListRegex.compileNative(pattern, closures);
+			lazy.lazy = true;
+		expect:
+			for (int i = 0; i < 50; i++) {
+				List<Integer> list = (0..<random.nextInt(12)).collect { random.nextInt(5) };
+				if (i % 2 == 1) {
+					list = new LinkedList<Integer>(list);
+				}
+
+				List groups = [];
+				List lazyGroups = [];
+				assert lazy.find(list, lazyGroups) == eager.find(list, groups);
+				assert lazyGroups == groups;
+				assert lazy.findAll(list, lazyGroups) == eager.findAll(list, groups);
+				assert lazyGroups == groups;
+				assert lazy.matches(list, lazyGroups) == eager.matches(list, groups);
+				assert lazyGroups == groups;
+			}
+		where:
+			pattern << patterns + lookaroundPatterns;
+	}
+
+	def testLazyEvaluation() {
+		setup:
+			int calls = 0;
+			NativeListRegex regex = ListRegex.compileNative("{0}{1}", [ { calls++; it == 3 }, { calls++; it == 4 } ]);
+			regex.lazy = true;
+		when:
+			Collection match = regex.find(list);
+		then:
+			match == [ 3, 4 ];
+			calls == 6;
+			!regex.matches(list);
+			calls == 7;
+		where:
+			list << [ (0..<100000).collect(), new LinkedList((0..<100000).collect()) ];
+	}
+
+	def testStreamingSameAsFindAll() {
+		setup:
+			Random random = new Random(7);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+		expect:
+			for (int i = 0; i < 50; i++) {
+				List<Integer> list = (0..<random.nextInt(12)).collect { random.nextInt(5) };
+				assert regex.findAll(list.iterator()).collect() == regex.findAll(list);
+			}
+		where:
+			pattern << patterns + lookaroundPatterns;
+	}
+
+	def testStreamingBuffer() {
+		setup:
+			NativeListRegex regex = ListRegex.compileNative("{0}{1}*{2}", [ { it % 10 == 0 }, { it % 10 != 9 }, { it % 10 == 9 } ]);
+			List<Long> starts = [];
+			StreamingListMatcher matcher = regex.streamingMatcher(
+				{ long start, List match -> starts.add(start); assert match.size() == 10 } as StreamingListMatcher.MatchListener
+			);
+			int maxBuffered = 0;
+		when:
+			for (int i = 0; i < 100000; i++) {
+				matcher.add(i);
+				maxBuffered = Math.max(maxBuffered, matcher.bufferedCount);
+			}
+			matcher.finish();
+		then:
+			starts == (0L..<100000L).step(10);
+			maxBuffered <= 2048;
+	}
+
+	def testStreamingLongInput() {
+		setup:
+			Random random = new Random(13);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+		expect:
+			// long enough for the matcher to discard elements and rebase
+			for (List<Integer> list : [ [ 0 ] * 5000, (0..<6000).collect { random.nextInt(5) } ]) {
+				List<Long> starts = [];
+				StreamingListMatcher matcher = regex.streamingMatcher(
+					{ long start, List match -> starts << start } as StreamingListMatcher.MatchListener
+				);
+				list.each { matcher.add(it) };
+				matcher.finish();
+
+				int[] offsets = regex.findAllOffsets(list);
+				assert starts == (0..<offsets.length).step(2).collect { offsets[it] as long };
+				assert regex.findAll(list.iterator()).collect() == regex.findAll(list);
+			}
+		where:
+			pattern << [ "^{0}", "^", "(?<!^){0}", "(?<!^.){0}", "(?<=^{0}'{'0,2}){0}", "(?<={1}{2}){0}", '{0}$' ];
+	}
+
+	def testIncrementalSameAsFindAll() {
+		setup:
+			Random random = new Random(42);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+		expect:
+			(0..<20).every {
+				List<Integer> list = [];
+				IncrementalListMatcher matcher = regex.incrementalMatcher(list);
+				List<List<Integer>> matches = [];
+				random.nextInt(8).times {
+					random.nextInt(6).times { list << random.nextInt(5) };
+					matches.addAll(matcher.update());
+				};
+				matches.addAll(matcher.finish());
+				assert matches == regex.findAll(list);
+				true
+			};
+		where:
+			pattern << patterns + lookaroundPatterns;
+	}
+
+	def testIncrementalLongInput() {
+		setup:
+			Random random = new Random(17);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+			List<Integer> list = [];
+			IncrementalListMatcher matcher = regex.incrementalMatcher(list);
+			List<List<Integer>> matches = [];
+		when:
+			// 6000 elements, enough for the matcher to rebase
+			60.times {
+				100.times { list << random.nextInt(5) };
+				matches.addAll(matcher.update());
+			};
+			matches.addAll(matcher.finish());
+		then:
+			matches == regex.findAll(list);
+			matcher.position == 6000;
+		where:
+			pattern << [ "^{0}", "^", "(?<!^){0}", "(?<!^.){0}", "(?<=^{0}'{'0,2}){0}", "{0}{1}*{2}" ];
+	}
+
+	def testParallelSameAsFindAll() {
+		setup:
+			Random random = new Random(11);
+			ForkJoinPool pool = new ForkJoinPool(4);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+			List<Integer> list = (0..<50000).collect { random.nextInt(5) };
+			List groups = [];
+			List parallelGroups = [];
+		expect:
+			regex.findAllParallel(list, parallelGroups, pool) == regex.findAll(list, groups);
+			parallelGroups == groups;
+		cleanup:
+			pool.shutdown();
+		where:
+			pattern << patterns + lookaroundPatterns + [ "{0}'{'0,7}", "({0}|{2})'{'3}{3}?", "{2}?" ];
+	}
+
+	def testBatchSameAsSingle() {
+		setup:
+			Random random = new Random(5);
+			ForkJoinPool pool = new ForkJoinPool(4);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+			List<List<Integer>> lists = (0..<500).collect { (0..<random.nextInt(12)).collect { random.nextInt(5) } };
+		expect:
+			regex.findBatch(lists, pool) == lists.collect { regex.find(it) };
+			regex.findAllBatch(lists, pool) == lists.collect { regex.findAll(it) };
+			regex.matchesBatch(lists, pool) == lists.collect { regex.matches(it) };
+		cleanup:
+			pool.shutdown();
+		where:
+			pattern << patterns + lookaroundPatterns;
+	}
+
+	def testBatchEdgeCases() {
+		setup:
+			NativeListRegex regex = ListRegex.compileNative('{0}{1}*|^{3}|{2}$', closures);
+			Random random = new Random(6);
+			ForkJoinPool pool = new ForkJoinPool(1);
+			// one thread reuses its buffer for long and short lists
+			List<List<Integer>> lists =
+				(0..<200).collect { (0..<random.nextInt(300)).collect { random.nextInt(5) } } +
+				[ [], [ 4 ], [ 2, 1 ] ] +
+				(0..<200).collect { (0..<random.nextInt(4)).collect { random.nextInt(5) } };
+		expect:
+			regex.findBatch([], pool) == [];
+			regex.findAllBatch([], pool) == [];
+			regex.matchesBatch([], pool) == [];
+
+			regex.findBatch(lists, pool) == lists.collect { regex.find(it) };
+			regex.findAllBatch(lists, pool) == lists.collect { regex.findAll(it) };
+			regex.matchesBatch(lists, pool) == lists.collect { regex.matches(it) };
+
+			regex.findBatch(lists) == lists.collect { regex.find(it) };
+			regex.findAllBatch(lists) == lists.collect { regex.findAll(it) };
+			regex.matchesBatch(lists) == lists.collect { regex.matches(it) };
+		cleanup:
+			pool.shutdown();
+	}
+
+	def testManyCombinations() {
+		setup:
+			List<Closure> bits = (0..<10).collect { int bit -> { int x -> ((x >> bit) & 1) == 1 } };
+			NativeListRegex regex = ListRegex.compileNative("{9}{0}", bits);
+		expect:
+			regex.findAll((0..<1024) as List) == (512..<1024).collate(2);
+	}
+
+	def testCache() {
+		setup:
+			int calls = 0;
+			List<Closure> counting = closures.collect { Closure c -> return { x -> calls++; c(x) } };
+			List<Integer> list = (0..<100).collect { it % 5 };
+			NativeListRegex regex = ListRegex.compileNative("{0}.{3}", counting);
+			def compiled = ListRegex.compile("{0}.{3}", counting);
+			regex.setCacheSize(3);
+			compiled.setCacheSize(8);
+		when:
+			def result = regex.findAll(list);
+			def again = regex.findAll(list);
+		then:
+			result == ListRegex.findAll("{0}.{3}", closures, list);
+			again == result;
+			// 5 distinct elements in a cycle, only 3 fit (the pattern uses 2 closures)
+			calls == 2 * (100 + 100);
+		when:
+			calls = 0;
+			regex.setCacheSize(5);
+			regex.findAll(list);
+			regex.findAll(list);
+			compiled.findAll(list);
+			compiled.findAll(list.reverse());
+		then:
+			calls == 2 * 5 + 4 * 5;
+	}
+
+	def testContainsMatchStopsEarly() {
+		setup:
+			int calls = 0;
+			NativeListRegex regex = ListRegex.compileNative("{0}{1}", [ { calls++; it == 1 }, { calls++; it == 2 } ]);
+		expect:
+			regex.containsMatch([ 1, 2 ] + [ 0 ] * 1000);
+			calls <= 4;
+	}
+
+	def testNamedGroupsSameAsListRegex() {
+		setup:
+			Random random = new Random(42);
+			String pattern = "(?<x>{0}|({2}))(?<y>{1}+)?(?<z>{3})?";
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+		expect:
+			regex.getGroupNames() == ListRegex.compile(pattern, closures).getGroupNames();
+			regex.getGroupNames() == [ x: 1, y: 3, z: 4 ];
+			(0..<50).every {
+				List<Integer> list = (0..<random.nextInt(16)).collect { random.nextInt(5) };
+				Map<String, Collection<Integer>> named = [:];
+				Map<String, Collection<Integer>> nativeNamed = [:];
+				List<Map<String, Collection<Integer>>> namedAll = [];
+				List<Map<String, Collection<Integer>>> nativeNamedAll = [];
+
+				assert regex.find(list, null, nativeNamed) == ListRegex.find(pattern, closures, list, null, named);
+				assert nativeNamed == named;
+				assert regex.findAll(list, null, nativeNamedAll) == ListRegex.findAll(pattern, closures, list, null, namedAll);
+				assert nativeNamedAll == namedAll;
+				true
+			};
+	}
+
+	def testTypedPredicates() {
+		setup:
+			Random random = new Random(42);
+			List<NativeListRegex.ElementPredicate> predicates = closures.collect { it as NativeListRegex.ElementPredicate };
+			List<IntListRegex.IntElementPredicate> intPredicates = closures.collect { it as IntListRegex.IntElementPredicate };
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+			NativeListRegex typed = NativeListRegex.withPredicates(pattern, predicates);
+			IntListRegex intRegex = new IntListRegex(pattern, intPredicates);
+			LongListRegex longRegex = new LongListRegex(pattern, closures.collect { it as LongListRegex.LongElementPredicate });
+			DoubleListRegex doubleRegex = new DoubleListRegex(pattern, closures.collect { it as DoubleListRegex.DoubleElementPredicate });
+		expect:
+			(0..<50).every {
+				List<Integer> list = (0..<random.nextInt(16)).collect { random.nextInt(5) };
+				int[] values = list as int[];
+				List<List<Integer>> groups = [];
+				List<List<Integer>> typedGroups = [];
+				Collection<Integer> match = regex.find(list, groups);
+				int[] offsets = intRegex.find(values);
+
+				assert typed.find(list, typedGroups) == match;
+				assert typedGroups == groups;
+				assert (offsets == null) == (match == null);
+				if (offsets != null) {
+					assert subLists(list, offsets) == groups;
+				}
+				assert typed.findAll(list) == regex.findAll(list);
+				assert subLists(list, intRegex.findAll(values)) == regex.findAll(list);
+				assert typed.matches(list) == regex.matches(list);
+				assert intRegex.matches(values) == regex.matches(list);
+				assert longRegex.findAll(list as long[]) == intRegex.findAll(values);
+				assert doubleRegex.findAll(list as double[]) == intRegex.findAll(values);
+				assert doubleRegex.find(list as double[]) == offsets;
+				true
+			};
+		where:
+			pattern << patterns;
+	}
+
+	def testTypedPredicateEdges() {
+		setup:
+			int calls = 0;
+			// more than 64 predicates take two longs per element
+			List<NativeListRegex.ElementPredicate<CharSequence>> predicates = (0..<70).collect { int length ->
+				{ CharSequence s -> calls++; s.length() == length } as NativeListRegex.ElementPredicate<CharSequence>
+			};
+			NativeListRegex<String> regex = NativeListRegex.withPredicates('{1}{69}+|{0}', predicates);
+			List<String> list = [ "a", "x" * 69, "x" * 69, "", "b" ];
+
+			IntListRegex intRegex = new IntListRegex('{0}+', [ { int v -> v < 0 } as IntListRegex.IntElementPredicate ]);
+			LongListRegex longRegex = new LongListRegex('{0}+', [ { long v -> v < 0 } as LongListRegex.LongElementPredicate ]);
+		when:
+			Collection<Collection<String>> matches = regex.findAll(list);
+		then:
+			matches == [ list.subList(0, 3), [ "" ] ];
+			// only the predicates in the pattern are called, once per element
+			calls == 3 * list.size();
+
+			intRegex.findAll([ Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE, -2 ] as int[]) == [ 0, 2, 4, 5 ] as int[];
+			intRegex.findAll(new int[0]).length == 0;
+			intRegex.find(new int[0]) == null;
+			!intRegex.matches(new int[0]);
+			longRegex.findAll([ Long.MIN_VALUE, -1L, 0L, Long.MAX_VALUE, -2L ] as long[]) == [ 0, 2, 4, 5 ] as int[];
+			longRegex.matches([ Long.MIN_VALUE, -1L ] as long[]);
+	}
+
+	def testDoubleEdges() {
+		setup:
+			// (Groovy's > and == compare like Double.compareTo: NaN > 0, -0.0 != 0)
+			List<DoubleListRegex.DoubleElementPredicate> predicates = [
+				{ double v -> Double.isNaN(v) },
+				{ double v -> !Double.isNaN(v) && Double.compare(v, 0.0d) > 0 },
+				{ double v -> Math.abs(v) == 0.0d }
+			].collect { it as DoubleListRegex.DoubleElementPredicate };
+			DoubleListRegex regex = new DoubleListRegex(pattern, predicates);
+		expect:
+			regex.findAll(values as double[]) == offsets as int[];
+			(regex.find(values as double[]) as List)?.take(2) == (offsets ? offsets.take(2) : null);
+			regex.matches(values as double[]) == matches;
+		where:
+			pattern      | values                                                                || offsets      | matches
+			"{0}+"       | [ Double.NaN, 1.0d, Double.NaN, Double.NaN ]                          || [ 0, 1, 2, 4 ] | false
+			"({1}|{2})+" | [ Double.NaN, Double.POSITIVE_INFINITY, -0.0d, Double.MIN_VALUE ]     || [ 1, 4 ]     | false
+			"{1}+"       | [ Double.NEGATIVE_INFINITY, -Double.MIN_VALUE, -0.0d, Double.NaN ]    || []           | false
+			"[^{1}]*"    | [ Double.NaN, Double.NEGATIVE_INFINITY, -0.0d ]                       || [ 0, 3, 3, 3 ] | true
+			"{0}*"       | []                                                                    || [ 0, 0 ]     | true
+			"{0}"        | []                                                                    || []           | false
+	}
+
+	def testSetSameAsSingle() {
+		setup:
+			Random random = new Random(42);
+			List<String> setPatterns = patterns + lookaroundPatterns;
+			NativeListRegexSet set = ListRegex.compileSet(setPatterns, closures);
+			List<NativeListRegex> regexes = setPatterns.collect { ListRegex.compileNative(it, closures) };
+		expect:
+			(0..<200).every {
+				List<Integer> list = (0..<random.nextInt(16)).collect { random.nextInt(5) };
+				List<Collection<Collection<Integer>>> expected = regexes.collect { it.findAll(list) };
+				assert set.findAll(list) == expected;
+				assert set.matching(list) == (0..<setPatterns.size()).findAll { !expected[it].isEmpty() };
+				true
+			};
+	}
+
+	def testSetFindAllPositions() {
+		setup:
+			// matches that are complete only some elements after their end
+			List<String> setPatterns = patterns + lookaroundPatterns + [
+				"{0}{2}{2}{2}|{0}", "(?:{0}{1}{1}{1}{2})?", "{1}*?{3}|{0}{0}{0}{0}{0}{2}|.", "{2}|{2}{0}{1}{0}{1}"
+			];
+			Random random = new Random(11);
+			NativeListRegexSet set = ListRegex.compileSet(setPatterns, closures);
+			List<NativeListRegex> regexes = setPatterns.collect { ListRegex.compileNative(it, closures) };
+		expect:
+			(0..<20).every {
+				List<Integer> list = (0..<random.nextInt(500)).collect { random.nextInt(5) };
+				List<List<List<Integer>>> expected = regexes.collect { NativeListRegex regex ->
+					int[] offsets = regex.findAllOffsets(list);
+					(0..<offsets.length).step(2).collect { int i -> [ offsets[i], offsets[i + 1] ] }
+				};
+				assert set.findAll(new OffsetList(list)) == expected;
+				true
+			};
+	}
+
+	/**
+	 * Returns the offsets of sublists instead of their elements.
+	 */
+	private static class OffsetList extends AbstractList<Integer> {
+		private final List<Integer> list;
+
+		OffsetList(List<Integer> list) {
+			this.list = list;
+		}
+
+		@Override
+		Integer get(int index) {
+			return list[index];
+		}
+
+		@Override
+		int size() {
+			return list.size();
+		}
+
+		@Override
+		List<Integer> subList(int from, int to) {
+			return [ from, to ];
+		}
+	}
+
+	def testPreparedSameAsNative() {
+		setup:
+			Random random = new Random(42);
+			List<NativeListRegex> regexes = patterns.collect { ListRegex.compileNative(it, closures) };
+		expect:
+			(0..<100).every {
+				List<Integer> list = (0..<random.nextInt(16)).collect { random.nextInt(5) };
+				PreparedList<Integer> prepared = ListRegex.prepare(list, closures);
+				if (!list.isEmpty()) {
+					// change one element in place
+					int index = random.nextInt(list.size());
+					list[index] = random.nextInt(5);
+					prepared.set(index, list[index]);
+				}
+				list << random.nextInt(5);
+				prepared.add(list.last());
+
+				patterns.eachWithIndex { String pattern, int i ->
+					List<Collection<Integer>> groups = [];
+					List<Collection<Integer>> preparedGroups = [];
+					assert prepared.find(pattern, preparedGroups) == regexes[i].find(list, groups);
+					assert preparedGroups == groups;
+					assert prepared.findAll(pattern) == regexes[i].findAll(list);
+					assert prepared.count(pattern) == regexes[i].count(list);
+					assert prepared.matches(pattern) == regexes[i].matches(list);
+				};
+				true
+			};
+	}
+
+	def testPreparedListEdges() {
+		setup:
+			List<Integer> calls = [];
+			// more than 64 closures take two longs per element
+			List<Closure> prepareClosures = (0..<70).collect { int value -> return { calls << it; it == value } };
+			List<Integer> list = [ 1, 2 ];
+			PreparedList<Integer> prepared = ListRegex.prepare(list, prepareClosures);
+		when:
+			list << 1;
+			calls.clear();
+			// (copies, the matches are views of the elements)
+			List<List<Integer>> before = prepared.findAll("{1}{69}*").collect { new ArrayList<Integer>(it) };
+			prepared.set(1, 69);
+			(0..<20).each { prepared.add(69) };
+			prepared.add(1);
+		then:
+			// the list is copied
+			prepared.size() == 23;
+			before == [ [ 1 ] ];
+			// closures are only called for the new elements
+			calls == [ 69 ] * 70 * 21 + [ 1 ] * 70;
+
+			// the cached pattern sees the changes
+			prepared.findAll("{1}{69}*") == [ [ 1 ] + [ 69 ] * 21, [ 1 ] ];
+			prepared.findAllOffsets("{1}{69}*") == [ 0, 22, 22, 23 ] as int[];
+			prepared.count("{69}") == 21;
+			prepared.matches("{1}{69}+{1}");
+			prepared.find("{69}{1}") == [ 69, 1 ];
+			calls.size() == 70 * 22;
+	}
+
+	def testPreparedListErrors() {
+		setup:
+			PreparedList<Integer> prepared = ListRegex.prepare([ 1, 2 ], closures);
+		when:
+			action(prepared);
+		then:
+			thrown(exception);
+		where:
+			action                                             || exception
+			{ PreparedList p -> p.find("{4}") }                || IllegalArgumentException
+			{ PreparedList p -> p.findAll("{0}(") }            || IllegalArgumentException
+			{ PreparedList p -> p.set(2, 0) }                  || IndexOutOfBoundsException
+			{ PreparedList p -> p.getElements().add(0) }       || UnsupportedOperationException
+	}
+
+	def testOffsets() {
+		setup:
+			Random random = new Random(42);
+			def compiled = ListRegex.compile(pattern, closures);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+		expect:
+			(0..<50).every {
+				List<Integer> list = (0..<random.nextInt(16)).collect { random.nextInt(5) };
+				List<List<Collection<Integer>>> groups = [];
+				Collection<Collection<Integer>> matches = regex.findAll(list, groups);
+				List<List<List<Integer>>> visited = [];
+				List<List<List<Integer>>> compiledVisited = [];
+
+				regex.findAll(list, true, { int[] offsets -> visited << subLists(list, offsets) } as ListMatchVisitor);
+				compiled.findAll(list, true, { int[] offsets -> compiledVisited << subLists(list, offsets) } as ListMatchVisitor);
+
+				assert subLists(list, regex.findAllOffsets(list)) == matches;
+				assert regex.split(list) == compiled.split(list);
+				assert regex.replaceAll(list, { m, g -> [ g ] }) == compiled.replaceAll(list, { m, g -> [ g ] });
+				assert subLists(list, compiled.findAllOffsets(list)) == matches;
+				assert visited == groups;
+				assert compiledVisited == groups;
+				true
+			};
+		where:
+			pattern << patterns;
+	}
+
+	private static List<List<Integer>> subLists(List<Integer> list, int[] offsets) {
+		return (0..<offsets.length).step(2).collect { int i ->
+			offsets[i] < 0 ? null : list.subList(offsets[i], offsets[i + 1])
+		};
+	}
+
+	def testClasses() {
+		setup:
+			Random random = new Random(3);
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+			NativeListRegex expected = ListRegex.compileNative(equivalent, closures);
+		expect:
+			(0..<50).every {
+				List<Integer> list = (0..<random.nextInt(16)).collect { random.nextInt(5) };
+				assert regex.findAll(list) == expected.findAll(list);
+				assert regex.findLast(list) == expected.findLast(list);
+				true
+			};
+		where:
+			pattern             | equivalent
+			"[{0}{3}]+"         | "(?:{0}|{3})+"
+			"[{2}]{0}"          | "{2}{0}"
+			"[^{1}]"            | "(?!{1})."
+			"[^{0}{3}]+[{3}]"   | "(?:(?!{0}|{3}).)+{3}"
+			"{2}[^{1}]'{'2}"    | "{2}(?:(?!{1}).)'{'2}"
+	}
+
+	def testLookaroundEdges() {
+		setup:
+			NativeListRegex regex = ListRegex.compileNative(pattern, closures);
+		expect:
+			regex.findAll(list) == expected;
+			regex.findAll(list) == ListRegex.findAll(pattern, closures, list);
+			regex.findAll(list.iterator()).collect() == expected;
+		where:
+			pattern                    | list          | expected
+			"(?<!.){0}"                | [ 0, 0 ]      | [ [ 0 ] ]
+			"{0}(?!.)"                 | [ 0, 0 ]      | [ [ 0 ] ]
+			'(?=$)'                    | [ 1, 1 ]      | [ [] ]
+			"(?<=(?<={2}){0}){1}"      | [ 1, 0, 2 ]   | [ [ 2 ] ]
+			"(?={0}'{'3}){0}"          | [ 0, 0, 0, 0 ] | [ [ 0 ], [ 0 ] ]
+			"(?<![{2}{3}]'{'2}){0}"    | [ 1, 4, 0, 1, 0 ] | [ [ 0 ] ]
+	}
+
+	def testLookaroundLinear() {
+		setup:
+			// a lookahead at every position, each examining up to 50 elements
+			NativeListRegex regex = ListRegex.compileNative("(?={0}'{'0,50}{3}){0}", closures);
+			List<Integer> list = [ 0 ] * 200000;
+		expect:
+			regex.findAll(list).isEmpty();
+			regex.findAll(list + [ 4 ]).size() == 50;
+	}
+
+	def testInvalidPatterns() {
+		when:
+			ListRegex.compileNative(pattern, closures);
+		then:
+			thrown(IllegalArgumentException);
+		where:
+			pattern << [ "{0}(", "{0})", "a", "*{0}", "{4}", "{0}++", "{x}", "(?<1a>{0})", "(?<a>{0})(?<a>{1})",
+				"[{0}", "[]", "[^]", "[{0}.]", "(?={0}", "(?<={0}",
+				"(?=.*{0})", "(?<={0}+)", "(?!(?:{0}{1})*)", "(?<=(?={0}+){1}+)" ];
+	}
+}
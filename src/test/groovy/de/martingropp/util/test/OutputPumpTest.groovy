@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util.test;
+
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+import de.martingropp.util.OutputPump;
+import de.martingropp.util.ProcessWatcher;
+
+class OutputPumpTest extends Specification {
+	OutputPump pump = new OutputPump(2, 2, TimeUnit.MILLISECONDS);
+
+	def cleanup() {
+		pump.shutdown();
+	}
+
+	private ProcessWatcher pumped(String script, List<String> lines) {
+		ProcessWatcher watcher = new ProcessWatcher("/bin/sh", "-c", script);
+		watcher.setPump(pump);
+		watcher.addUniversalListener({ String line, boolean stderr -> lines << line } as ProcessWatcher.OutputListener);
+		return watcher;
+	}
+
+	def testManyWatchers() {
+		setup:
+			List<List<String>> lines = (0..<50).collect { [] };
+			List<ProcessWatcher> watchers = (0..<50).collect { pumped("seq 1 2000", lines[it]) };
+		when:
+			watchers*.start();
+			watchers*.join();
+		then:
+			lines.every { it == (1..2000)*.toString() };
+	}
+
+	def testCompleteLines() {
+		setup:
+			List<String> lines = [];
+			// a long line written in pieces, and a last line without '\n'
+			ProcessWatcher watcher = pumped("printf 'ab'; sleep 0.1; printf 'cd\\n%020000d\\nend' 0", lines);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			lines == [ "abcd", "0" * 20000, "end" ];
+	}
+
+	def testCloseOnEof() {
+		setup:
+			List<String> lines = [];
+			List<Integer> exitCodes = [];
+			ProcessWatcher watcher = pumped("echo done; exit 3", lines);
+			watcher.addExitListener({ int exitCode -> exitCodes << exitCode } as ProcessWatcher.ExitListener);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			lines == [ "done" ];
+			exitCodes == [ 3 ];
+	}
+
+	def testChildKeepsPipe() {
+		setup:
+			List<String> lines = [];
+			List<String> otherLines = [];
+			// the background sleep inherits stdout and keeps it open
+			ProcessWatcher watcher = pumped("sleep 5 & echo started", lines);
+			ProcessWatcher other = pumped("sleep 0.2; echo other", otherLines);
+			long start = System.nanoTime();
+		when:
+			watcher.start();
+			other.start();
+			watcher.join();
+			other.join();
+		then:
+			lines == [ "started" ];
+			otherLines == [ "other" ];
+			TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000;
+	}
+
+	def testFailingExitListener() {
+		setup:
+			List<String> lines = [];
+			// stderr ends with the process, stdout is still being read then
+			ProcessWatcher watcher = pumped("echo done >&2; seq 1 500", []);
+			watcher.addStdoutListener({ String line, boolean stderr -> Thread.sleep(1); lines << line } as ProcessWatcher.OutputListener);
+			watcher.addExitListener({ int exitCode -> throw new IllegalStateException("test") } as ProcessWatcher.ExitListener);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			// join waits for both streams
+			lines == (1..500)*.toString();
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) Martin Gropp, All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+package de.martingropp.util.test;
+
+import java.nio.ByteBuffer
+import java.nio.ReadOnlyBufferException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import spock.lang.Requires
+import spock.lang.Specification
+import de.martingropp.util.ProcessWatcher;
+
+class ProcessWatcherTest extends Specification {
+	private static ProcessWatcher shell(String script) {
+		return new ProcessWatcher("/bin/sh", "-c", script);
+	}
+
+	private static boolean hasVirtualThreads() {
+		return Thread.methods.any { it.name == "ofVirtual" };
+	}
+
+	def testThreadFactory() {
+		setup:
+			ProcessWatcher watcher = shell("echo out; echo err >&2");
+			AtomicInteger created = new AtomicInteger();
+			watcher.threadFactory = { Runnable runnable -> created.incrementAndGet(); new Thread(runnable, "reader") } as ThreadFactory;
+			List<String> threads = [].asSynchronized();
+			watcher.addUniversalListener({ String line, boolean stderr -> threads << Thread.currentThread().name } as ProcessWatcher.OutputListener);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			created.get() == 2;
+			threads == [ "reader", "reader" ];
+	}
+
+	@Requires({ ProcessWatcherTest.hasVirtualThreads() })
+	def testVirtualThreads() {
+		setup:
+			ProcessWatcher watcher = shell("seq 1 100");
+			watcher.threadFactory = ProcessWatcher.virtualThreadFactory();
+			List<String> lines = [];
+			List<Boolean> virtual = [];
+			watcher.addStdoutListener({ String line, boolean stderr -> lines << line; virtual << Thread.currentThread().virtual } as ProcessWatcher.OutputListener);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			lines == (1..100)*.toString();
+			virtual.every();
+	}
+
+	@Requires({ !ProcessWatcherTest.hasVirtualThreads() })
+	def testNoVirtualThreads() {
+		when:
+			ProcessWatcher.virtualThreadFactory();
+		then:
+			thrown(UnsupportedOperationException);
+		when:
+			// the property falls back to platform threads
+			System.setProperty(ProcessWatcher.VIRTUAL_THREADS_PROPERTY, "true");
+			ProcessWatcher watcher = shell("echo a");
+		then:
+			watcher.threadFactory == null;
+		cleanup:
+			System.clearProperty(ProcessWatcher.VIRTUAL_THREADS_PROPERTY);
+	}
+
+	def testBatchesBySize() {
+		setup:
+			ProcessWatcher watcher = shell("seq 1 1050");
+			List<List<String>> batches = [];
+			watcher.addStdoutBatchListener(
+				{ List<String> lines, boolean stderr -> batches << lines } as ProcessWatcher.BatchOutputListener,
+				100, 1, TimeUnit.MINUTES
+			);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			// full batches, then the rest at the end of the output
+			batches*.size() == [ 100 ] * 10 + [ 50 ];
+			batches.flatten() == (1..1050)*.toString();
+	}
+
+	def testBatchesByTime() {
+		setup:
+			ProcessWatcher watcher = shell("echo a; echo b; sleep 2; echo c");
+			List<List<String>> batches = [].asSynchronized();
+			CountDownLatch first = new CountDownLatch(1);
+			watcher.addStdoutBatchListener(
+				{ List<String> lines, boolean stderr -> batches << lines; first.countDown() } as ProcessWatcher.BatchOutputListener,
+				100, 100, TimeUnit.MILLISECONDS
+			);
+		when:
+			watcher.start();
+			boolean early = first.await(1500, TimeUnit.MILLISECONDS);
+			watcher.join();
+		then:
+			early;
+			batches == [ [ "a", "b" ], [ "c" ] ];
+	}
+
+	def testFinalBatchBeforeExitListeners() {
+		setup:
+			ProcessWatcher watcher = shell("echo x >&2; echo y >&2");
+			List<String> events = [].asSynchronized();
+			watcher.addStderrBatchListener(
+				{ List<String> lines, boolean stderr -> events.addAll(lines) } as ProcessWatcher.BatchOutputListener,
+				100, 1, TimeUnit.MINUTES
+			);
+			watcher.addExitListener({ int exitCode -> events << "exit " + exitCode } as ProcessWatcher.ExitListener);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			events == [ "x", "y", "exit 0" ];
+	}
+
+	def testSlowBatchListener() {
+		setup:
+			ProcessWatcher slow = shell("echo a; sleep 1; echo b");
+			ProcessWatcher fast = shell("sleep 0.3; echo a; sleep 1; echo b");
+			CountDownLatch fastFirst = new CountDownLatch(1);
+			slow.addStdoutBatchListener(
+				{ List<String> lines, boolean stderr -> Thread.sleep(3000) } as ProcessWatcher.BatchOutputListener,
+				100, 50, TimeUnit.MILLISECONDS
+			);
+			fast.addStdoutBatchListener(
+				{ List<String> lines, boolean stderr -> fastFirst.countDown() } as ProcessWatcher.BatchOutputListener,
+				100, 50, TimeUnit.MILLISECONDS
+			);
+		when:
+			slow.start();
+			fast.start();
+		then:
+			// not held up by the slow listener
+			fastFirst.await(1500, TimeUnit.MILLISECONDS);
+		cleanup:
+			slow.join();
+			fast.join();
+	}
+
+	def testBatchListenerException() {
+		setup:
+			Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+			List<Throwable> reported = [].asSynchronized();
+			CountDownLatch latch = new CountDownLatch(1);
+			Thread.setDefaultUncaughtExceptionHandler({ Thread thread, Throwable e -> reported << e; latch.countDown() } as Thread.UncaughtExceptionHandler);
+			ProcessWatcher watcher = shell("echo a; sleep 1");
+			watcher.addStdoutBatchListener(
+				{ List<String> lines, boolean stderr -> throw new IllegalStateException(lines[0]) } as ProcessWatcher.BatchOutputListener,
+				100, 50, TimeUnit.MILLISECONDS
+			);
+		when:
+			watcher.start();
+			latch.await(1500, TimeUnit.MILLISECONDS);
+			watcher.join();
+		then:
+			reported*.message == [ "a" ];
+		cleanup:
+			Thread.setDefaultUncaughtExceptionHandler(handler);
+	}
+
+	def testRawListenerBytes() {
+		setup:
+			// not valid in any charset, and more than one read
+			ProcessWatcher watcher = shell("printf '\\377\\000a\\r\\n'; seq 1 20000");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			List<Boolean> readOnly = [];
+			watcher.addStdoutRawListener(
+				{ ByteBuffer data, boolean stderr ->
+					try {
+						data.put(data.position(), (byte)0);
+						readOnly << false;
+					}
+					catch (ReadOnlyBufferException e) {
+						readOnly << true;
+					}
+					byte[] chunk = new byte[data.remaining()];
+					data.get(chunk);
+					bytes.write(chunk);
+				} as ProcessWatcher.RawOutputListener
+			);
+		when:
+			watcher.start();
+			watcher.join();
+		then:
+			bytes.toByteArray().toList() == [ -1, 0, 0x61, 0x0d, 0x0a ] + ((1..20000).join("\n") + "\n").getBytes("US-ASCII").toList();
+			readOnly.size() > 1;
+			readOnly.every();
+	}
+
+	def testLineListenerAddedLater() {
+		setup:
+			ProcessWatcher watcher = shell("printf 'part'; sleep 0.5; printf 'ial\\nnext\\n'; sleep 0.2; echo last");
+			CountDownLatch started = new CountDownLatch(1);
+			watcher.addStdoutRawListener({ ByteBuffer data, boolean stderr -> started.countDown() } as ProcessWatcher.RawOutputListener);
+			List<String> lines = [].asSynchronized();
+		when:
+			watcher.start();
+			started.await(5, TimeUnit.SECONDS);
+			// the output so far has not been decoded
+			watcher.addStdoutListener({ String line, boolean stderr -> lines << line } as ProcessWatcher.OutputListener);
+			watcher.join();
+		then:
+			// not "ial"
+			lines == [ "next", "last" ];
+	}
+}